@@ -0,0 +1,55 @@
+package com.v7878.vmtools;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal timing helpers for on-device benchmarks.
+ * Results are written to logcat (tag VMToolsBenchmark) and to the instrumentation status,
+ * so they are shown by "am instrument -r" and gradle connectedAndroidTest.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    static final String TAG = "VMToolsBenchmark";
+
+    /**
+     * Runs the body several times
+     *
+     * @return nanoseconds of every run
+     */
+    static long[] measure(int runs, LongSupplier body) {
+        long[] out = new long[runs];
+        long sink = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            sink += body.getAsLong();
+            out[i] = System.nanoTime() - start;
+        }
+        // Results of the body are used, so the work is not removed
+        if (sink == 42) {
+            Log.v(TAG, "sink");
+        }
+        return out;
+    }
+
+    static long median(long[] values) {
+        long[] tmp = values.clone();
+        Arrays.sort(tmp);
+        return tmp[tmp.length / 2];
+    }
+
+    static void report(String name, double value, String unit) {
+        String line = String.format("%s: %.2f %s", name, value, unit);
+        Log.i(TAG, line);
+        var bundle = new Bundle();
+        bundle.putString(Benchmarks.class.getName(), line + "\n");
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, bundle);
+    }
+}
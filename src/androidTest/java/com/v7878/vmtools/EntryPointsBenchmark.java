@@ -0,0 +1,104 @@
+package com.v7878.vmtools;
+
+import static com.v7878.dex.DexConstants.ACC_ABSTRACT;
+import static com.v7878.dex.DexConstants.ACC_NATIVE;
+import static com.v7878.dex.DexConstants.ACC_PRIVATE;
+import static com.v7878.dex.DexConstants.ACC_PUBLIC;
+import static com.v7878.unsafe.ArtMethodUtils.getExecutableEntryPoint;
+import static com.v7878.unsafe.Reflection.getDeclaredMethod;
+import static com.v7878.unsafe.foreign.LibArt.ART;
+import static org.junit.Assert.assertNotEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.v7878.dex.DexIO;
+import com.v7878.dex.builder.ClassBuilder;
+import com.v7878.dex.immutable.ClassDef;
+import com.v7878.dex.immutable.Dex;
+import com.v7878.dex.immutable.MethodId;
+import com.v7878.dex.immutable.ProtoId;
+import com.v7878.dex.immutable.TypeId;
+import com.v7878.foreign.MemorySegment;
+import com.v7878.unsafe.DexFileUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.invoke.MethodType;
+
+/**
+ * Cold start cost of resolving the generic jni trampoline and the interpreter bridge.
+ * The old way generated, opened and loaded a dex with a 30-parameter native method
+ * in the static initializer of EntryPoints, the new way looks up libart symbols on first use.
+ * Every run of the old way generates a class with a new name, so each of them is cold.
+ * Symbol lookups may be cached by the library, so for them only the first run is cold.
+ * First use of EntryPoints in this process is reported separately; it is cold only if
+ * nothing in the process resolved these entry points before this test.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EntryPointsBenchmark {
+    private static final int RUNS = 15;
+
+    private static final MethodType JNI_TYPE = MethodType.methodType(Object.class,
+            Object.class, int.class, long.class, float.class, double.class,
+            Object.class, int.class, long.class, float.class, double.class,
+            Object.class, int.class, long.class, float.class, double.class,
+            Object.class, int.class, long.class, float.class, double.class,
+            Object.class, int.class, long.class, float.class, double.class,
+            Object.class, int.class, long.class, float.class, double.class);
+
+    private static int probe_id;
+
+    // The static initializer of EntryPoints before lazy resolution
+    private static long probeDex() {
+        String name = EntryPointsBenchmark.class.getName() + "$Probe" + (probe_id++);
+        TypeId id = TypeId.ofName(name);
+        var jni_method_id = MethodId.of(id, "jni", ProtoId.of(JNI_TYPE));
+        var interpreter_method_id = MethodId.of(id, "interpreter", ProtoId.of(TypeId.V));
+        ClassDef def = ClassBuilder.build(id, cb -> cb
+                .withSuperClass(TypeId.OBJECT)
+                .withFlags(ACC_ABSTRACT)
+                .withMethod(mb -> mb
+                        .of(jni_method_id)
+                        .withFlags(ACC_PRIVATE | ACC_NATIVE)
+                )
+                .withMethod(mb -> mb
+                        .of(interpreter_method_id)
+                        .withFlags(ACC_PUBLIC | ACC_ABSTRACT)
+                )
+        );
+        var dexfile = DexFileUtils.openDexFile(DexIO.write(Dex.of(def)));
+        var clazz = DexFileUtils.loadClass(dexfile, name, EntryPointsBenchmark.class.getClassLoader());
+        long jni = getExecutableEntryPoint(getDeclaredMethod(clazz, "jni", JNI_TYPE.parameterArray()));
+        long interpreter = getExecutableEntryPoint(getDeclaredMethod(clazz, "interpreter"));
+        return jni ^ interpreter;
+    }
+
+    private static long find(String symbol) {
+        return ART.find(symbol).map(MemorySegment::nativeAddress).orElse(0L);
+    }
+
+    // The lazy path of EntryPoints when libart exports the symbols
+    private static long symbols() {
+        return find("art_quick_generic_jni_trampoline") ^ find("art_quick_to_interpreter_bridge");
+    }
+
+    private static void report(String name, long[] nanos) {
+        Benchmarks.report(name + ", first run", nanos[0] / 1000.0, "us");
+        Benchmarks.report(name + ", median", Benchmarks.median(nanos) / 1000.0, "us");
+    }
+
+    @Test
+    public void coldStart() {
+        long start = System.nanoTime();
+        long jni = EntryPoints.getGenericJniTrampoline();
+        long interpreter = EntryPoints.getToInterpreterBridge();
+        Benchmarks.report("EntryPoints, first use in this process",
+                (System.nanoTime() - start) / 1000.0, "us");
+        assertNotEquals(0, jni);
+        assertNotEquals(0, interpreter);
+
+        report("generated dex (old)", Benchmarks.measure(RUNS, EntryPointsBenchmark::probeDex));
+        report("libart symbols (new)", Benchmarks.measure(RUNS, EntryPointsBenchmark::symbols));
+    }
+}
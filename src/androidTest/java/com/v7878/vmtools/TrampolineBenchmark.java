@@ -0,0 +1,119 @@
+package com.v7878.vmtools;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.v7878.vmtools.Hooks.EntryPointType;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Cost per call of a hooked method for every entry point type of the hooker.
+ * DIRECT always enters the hooker through the interpreter bridge, CURRENT jumps to the code
+ * of the hooker taken when the hook is applied, DYNAMIC loads its entry point on every call.
+ * The hooker is warmed up and, starting with Android 13, compiled before the hooks are applied,
+ * so CURRENT and DYNAMIC run the same code and differ only by the extra load.
+ * Before Android 14, CURRENT jit code is replaced by DIRECT, so CURRENT is measured as DIRECT.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrampolineBenchmark {
+    private static final int CALLS = 1_000_000;
+    private static final int RUNS = 15;
+
+    // Targets are the same, each of them is hooked with its own entry point type
+    static int direct(int a, int b) {
+        return a - b;
+    }
+
+    static int current(int a, int b) {
+        return a - b;
+    }
+
+    static int dynamic(int a, int b) {
+        return a - b;
+    }
+
+    static int hooker(int a, int b) {
+        return a + b;
+    }
+
+    private static long callDirect(int calls) {
+        long sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += direct(i, (int) sum);
+        }
+        return sum;
+    }
+
+    private static long callCurrent(int calls) {
+        long sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += current(i, (int) sum);
+        }
+        return sum;
+    }
+
+    private static long callDynamic(int calls) {
+        long sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += dynamic(i, (int) sum);
+        }
+        return sum;
+    }
+
+    private static long callHooker(int calls) {
+        long sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += hooker(i, (int) sum);
+        }
+        return sum;
+    }
+
+    private static Method method(String name) throws NoSuchMethodException {
+        return TrampolineBenchmark.class.getDeclaredMethod(name, int.class, int.class);
+    }
+
+    private static double nanosPerCall(IntToLongFunction loop) {
+        // The first runs are warm up, the median ignores them
+        return (double) Benchmarks.median(Benchmarks.measure(RUNS,
+                () -> loop.applyAsLong(CALLS))) / CALLS;
+    }
+
+    @Test
+    public void entryPointTypes() throws Throwable {
+        var hooker = method("hooker");
+        callHooker(CALLS);
+        Runtime.requestJitCompilation(List.of(hooker));
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!Runtime.isJitCompiled(hooker) && System.nanoTime() < deadline) {
+            callHooker(CALLS / 10);
+            Thread.sleep(10);
+        }
+        Benchmarks.report("hooker is jit compiled", Runtime.isJitCompiled(hooker) ? 1 : 0, "");
+
+        var batch = new HookBatch()
+                .hook(method("direct"), hooker, EntryPointType.DIRECT)
+                .hook(method("current"), hooker, EntryPointType.CURRENT)
+                .hook(method("dynamic"), hooker, EntryPointType.DYNAMIC);
+        try (var handle = batch.commit().handle()) {
+            assertEquals(7, direct(5, 2));
+            assertEquals(7, current(5, 2));
+            assertEquals(7, dynamic(5, 2));
+
+            double direct = nanosPerCall(TrampolineBenchmark::callDirect);
+            double current = nanosPerCall(TrampolineBenchmark::callCurrent);
+            double dynamic = nanosPerCall(TrampolineBenchmark::callDynamic);
+            Benchmarks.report("DIRECT", direct, "ns/call");
+            Benchmarks.report("CURRENT", current, "ns/call");
+            Benchmarks.report("DYNAMIC", dynamic, "ns/call");
+            Benchmarks.report("DYNAMIC - CURRENT", dynamic - current, "ns/call");
+            Benchmarks.report("DYNAMIC - DIRECT", dynamic - direct, "ns/call");
+        }
+    }
+}
@@ -643,6 +643,14 @@ public final class JVMTI {
         @CallSignature(type = NATIVE_STATIC_OMIT_ENV, ret = INT, args = {LONG_AS_WORD, OBJECT})
         abstract int ResumeThread(long env, Object thread);
 
+        @LibrarySymbol(name = "SuspendThreadList")
+        @CallSignature(type = NATIVE_STATIC_OMIT_ENV, ret = INT, args = {LONG_AS_WORD, INT, LONG_AS_WORD, LONG_AS_WORD})
+        abstract int SuspendThreadList(long env, int request_count, long request_list, long results);
+
+        @LibrarySymbol(name = "ResumeThreadList")
+        @CallSignature(type = NATIVE_STATIC_OMIT_ENV, ret = INT, args = {LONG_AS_WORD, INT, LONG_AS_WORD, LONG_AS_WORD})
+        abstract int ResumeThreadList(long env, int request_count, long request_list, long results);
+
         @LibrarySymbol(name = "StopThread")
         @CallSignature(type = NATIVE_STATIC_OMIT_ENV, ret = INT, args = {LONG_AS_WORD, OBJECT})
         abstract int StopThread(long env, Object thread);
@@ -912,6 +920,47 @@ public final class JVMTI {
         checkError(Native.INSTANCE.ResumeThread(JVMTI_ENV, thread));
     }
 
+    private interface ThreadListFunction {
+        int apply(long env, int request_count, long request_list, long results);
+    }
+
+    private static int[] ThreadList(ThreadListFunction function, Thread[] threads) throws JVMTIException {
+        Objects.requireNonNull(threads);
+        int count = threads.length;
+        if (count == 0) {
+            return new int[0];
+        }
+        JNIUtils.PushLocalFrame(count);
+        try (Arena scope = Arena.ofConfined()) {
+            MemorySegment list = scope.allocate(WORD, count);
+            long list_address = list.nativeAddress();
+            MemorySegment results = scope.allocate(JAVA_INT, count);
+            for (int i = 0; i < count; i++) {
+                long thread = JNIUtils.NewLocalRef(Objects.requireNonNull(threads[i]));
+                putWordN(list_address + WORD.byteSize() * i, thread);
+            }
+            checkError(function.apply(JVMTI_ENV, count,
+                    list_address, results.nativeAddress()));
+            return results.toArray(JAVA_INT);
+        } finally {
+            JNIUtils.PopLocalFrame();
+        }
+    }
+
+    /**
+     * @return error code for every thread, the threads with JVMTI_ERROR_NONE are suspended
+     */
+    public static int[] SuspendThreadList(Thread... threads) throws JVMTIException {
+        return ThreadList(Native.INSTANCE::SuspendThreadList, threads);
+    }
+
+    /**
+     * @return error code for every thread, the threads with JVMTI_ERROR_NONE are resumed
+     */
+    public static int[] ResumeThreadList(Thread... threads) throws JVMTIException {
+        return ThreadList(Native.INSTANCE::ResumeThreadList, threads);
+    }
+
     public static void StopThread(Thread thread) throws JVMTIException {
         checkError(Native.INSTANCE.StopThread(JVMTI_ENV, thread));
     }
@@ -0,0 +1,17 @@
+package com.v7878.vmtools;
+
+import java.lang.reflect.Executable;
+
+final class Advice {
+    final Executable method;
+    final int count;
+    final BeforeHook before;
+    final AfterHook after;
+
+    Advice(Executable method, int count, BeforeHook before, AfterHook after) {
+        this.method = method;
+        this.count = count;
+        this.before = before;
+        this.after = after;
+    }
+}
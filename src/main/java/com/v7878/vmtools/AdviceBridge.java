@@ -0,0 +1,266 @@
+package com.v7878.vmtools;
+
+import static com.v7878.dex.DexConstants.ACC_FINAL;
+import static com.v7878.dex.DexConstants.ACC_PRIVATE;
+import static com.v7878.dex.DexConstants.ACC_PUBLIC;
+import static com.v7878.dex.DexConstants.ACC_STATIC;
+import static com.v7878.dex.builder.CodeBuilder.InvokeKind.STATIC;
+import static com.v7878.dex.builder.CodeBuilder.InvokeKind.VIRTUAL;
+import static com.v7878.dex.builder.CodeBuilder.Op.GET_OBJECT;
+import static com.v7878.dex.builder.CodeBuilder.Test.NE;
+import static com.v7878.unsafe.Reflection.fieldOffset;
+import static com.v7878.unsafe.Reflection.getDeclaredField;
+import static com.v7878.unsafe.Reflection.getDeclaredMethod;
+
+import com.v7878.dex.DexIO;
+import com.v7878.dex.builder.ClassBuilder;
+import com.v7878.dex.builder.CodeBuilder;
+import com.v7878.dex.immutable.ClassDef;
+import com.v7878.dex.immutable.Dex;
+import com.v7878.dex.immutable.FieldId;
+import com.v7878.dex.immutable.MethodId;
+import com.v7878.dex.immutable.ProtoId;
+import com.v7878.dex.immutable.TypeId;
+import com.v7878.unsafe.AndroidUnsafe;
+import com.v7878.unsafe.ArtMethodUtils;
+import com.v7878.unsafe.DexFileUtils;
+import com.v7878.unsafe.Utils;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Static bridge that stores the arguments into HookArguments,
+ * and calls BeforeHook, the original method and AfterHook.
+ * Bridges are shared between hooks with the same erased type: every bridge class
+ * has SLOTS_PER_CLASS pairs of hook and backup methods, each of them reads its own static field.
+ */
+final class AdviceBridge {
+    static final int SLOTS_PER_CLASS = 8;
+
+    private static final String BRIDGE_NAME = Hooks.class.getName() + "$$$Advice";
+    private static final String HOOK_NAME = "hook";
+    private static final String BACKUP_NAME = "backup";
+    private static final String FIELD_NAME = "advice";
+
+    private static final class Entry {
+        final Pool pool;
+        final Method hook;
+        final Method backup;
+        final long advice_offset;
+        // Guarded by AdviceBridge.class
+        int generation;
+        boolean acquired;
+
+        Entry(Pool pool, Method hook, Method backup, long advice_offset) {
+            this.pool = pool;
+            this.hook = hook;
+            this.backup = backup;
+            this.advice_offset = advice_offset;
+        }
+    }
+
+    /**
+     * One acquisition of a bridge, it becomes stale once released
+     */
+    static final class Slot implements PooledSlot {
+        private final Entry entry;
+        private final int generation;
+
+        private Slot(Entry entry, int generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+
+        public Method hook() {
+            return entry.hook;
+        }
+
+        /**
+         * Has the same code as hook, but is expected to be replaced with the original method
+         */
+        public Method backup() {
+            return entry.backup;
+        }
+
+        public void setAdvice(Advice advice) {
+            AndroidUnsafe.putObject(entry.hook.getDeclaringClass(), entry.advice_offset, advice);
+        }
+
+        @Override
+        public void release() {
+            synchronized (AdviceBridge.class) {
+                if (!entry.acquired || entry.generation != generation) {
+                    return;
+                }
+                entry.acquired = false;
+                entry.generation++;
+                setAdvice(null);
+                entry.pool.free.push(entry);
+            }
+        }
+    }
+
+    private static final class Pool {
+        final MethodType erased;
+        final ArrayDeque<Entry> free = new ArrayDeque<>();
+
+        Pool(MethodType erased) {
+            this.erased = erased;
+        }
+    }
+
+    private static final Map<MethodType, Pool> pools = new HashMap<>();
+    private static int next_class_id;
+
+    private static boolean isWide(char shorty) {
+        return shorty == 'J' || shorty == 'D';
+    }
+
+    private static ClassDef generateBridge(String name, MethodType erased) {
+        ProtoId proto = ProtoId.of(erased);
+
+        TypeId bridge_id = TypeId.ofName(name);
+        TypeId args_id = TypeId.of(HookArguments.class);
+        TypeId obj_id = TypeId.OBJECT;
+        TypeId void_id = TypeId.V;
+
+        MethodId enter_id = MethodId.of(args_id, "enter", ProtoId.of(args_id, obj_id));
+        MethodId before_id = MethodId.of(args_id, "runBefore", ProtoId.of(TypeId.of(boolean.class)));
+        MethodId throwable_id = MethodId.of(args_id, "storeThrowable",
+                ProtoId.of(void_id, TypeId.of(Throwable.class)));
+        MethodId after_id = MethodId.of(args_id, "runAfter", ProtoId.of(void_id));
+
+        int params = proto.countInputRegisters();
+        var ptypes = erased.parameterArray();
+        var ret_id = TypeId.of(erased.returnType());
+        var ret_type = ret_id.getShorty();
+
+        return ClassBuilder.build(bridge_id, cb -> {
+            cb.withSuperClass(obj_id);
+            cb.withFlags(ACC_PUBLIC | ACC_FINAL);
+            for (int slot = 0; slot < SLOTS_PER_CLASS; slot++) {
+                FieldId field_id = FieldId.of(bridge_id, FIELD_NAME + slot, obj_id);
+                MethodId hook_id = MethodId.of(bridge_id, HOOK_NAME + slot, proto);
+                MethodId backup_id = MethodId.of(bridge_id, BACKUP_NAME + slot, proto);
+
+                Consumer<CodeBuilder> code = ib -> {
+                    ib.sop(GET_OBJECT, ib.l(0), field_id);
+                    ib.invoke(STATIC, enter_id, ib.l(0));
+                    ib.move_result_object(ib.l(0));
+
+                    for (int i = 0, reg = 0; i < ptypes.length; i++) {
+                        var type_id = TypeId.of(ptypes[i]);
+                        char shorty = type_id.getShorty();
+                        var push_id = MethodId.of(args_id, "push" + shorty, ProtoId.of(void_id, type_id));
+                        // Arguments of non-range invoke must be in v0-v15, so the value is moved first
+                        ib.move_shorty(shorty, ib.l(1), ib.p(reg));
+                        if (isWide(shorty)) {
+                            ib.invoke(VIRTUAL, push_id, ib.l(0), ib.l(1), ib.l(2));
+                            reg += 2;
+                        } else {
+                            ib.invoke(VIRTUAL, push_id, ib.l(0), ib.l(1));
+                            reg += 1;
+                        }
+                    }
+
+                    ib.invoke(VIRTUAL, before_id, ib.l(0));
+                    ib.move_result_shorty('Z', ib.l(1));
+                    ib.if_testz(NE, ib.l(1), ":after");
+
+                    // BeforeHook may change the arguments
+                    for (int i = 0, reg = 0; i < ptypes.length; i++) {
+                        var type_id = TypeId.of(ptypes[i]);
+                        char shorty = type_id.getShorty();
+                        var pop_id = MethodId.of(args_id, "pop" + shorty, ProtoId.of(type_id));
+                        ib.invoke(VIRTUAL, pop_id, ib.l(0));
+                        ib.move_result_shorty(shorty, ib.l(1));
+                        ib.move_shorty(shorty, ib.p(reg), ib.l(1));
+                        reg += isWide(shorty) ? 2 : 1;
+                    }
+
+                    ib.label(":try_start");
+                    ib.invoke_range(STATIC, backup_id, params, params == 0 ? ib.l(0) : ib.p(0));
+                    ib.move_result_shorty(ret_type, ib.l(1));
+                    ib.label(":try_end");
+                    if (ret_type != 'V') {
+                        var store_id = MethodId.of(args_id, "storeResult" + ret_type,
+                                ProtoId.of(void_id, ret_id));
+                        if (isWide(ret_type)) {
+                            ib.invoke(VIRTUAL, store_id, ib.l(0), ib.l(1), ib.l(2));
+                        } else {
+                            ib.invoke(VIRTUAL, store_id, ib.l(0), ib.l(1));
+                        }
+                    }
+                    ib.goto_(":after");
+
+                    ib.label(":catch");
+                    ib.move_exception(ib.l(1));
+                    ib.invoke(VIRTUAL, throwable_id, ib.l(0), ib.l(1));
+
+                    ib.label(":after");
+                    ib.invoke(VIRTUAL, after_id, ib.l(0));
+                    if (ret_type != 'V') {
+                        var result_id = MethodId.of(args_id, "result" + ret_type, ProtoId.of(ret_id));
+                        ib.invoke(VIRTUAL, result_id, ib.l(0));
+                    }
+                    ib.move_result_shorty(ret_type, ib.l(1));
+                    ib.return_shorty(ret_type, ib.l(1));
+
+                    ib.try_catch_all(":try_start", ":try_end", ":catch");
+                };
+
+                cb.withField(fb -> fb
+                        .of(field_id)
+                        .withFlags(ACC_PRIVATE | ACC_STATIC)
+                );
+                cb.withMethod(mb -> mb
+                        .of(hook_id)
+                        .withFlags(ACC_PUBLIC | ACC_STATIC)
+                        .withCode(/* args, wide value */ 3, code)
+                );
+                cb.withMethod(mb -> mb
+                        .of(backup_id)
+                        .withFlags(ACC_PUBLIC | ACC_STATIC)
+                        .withCode(/* args, wide value */ 3, code)
+                );
+            }
+        });
+    }
+
+    private static void grow(Pool pool) {
+        String name = BRIDGE_NAME + (next_class_id++);
+        ClassLoader loader = Utils.newEmptyClassLoader(HookArguments.class.getClassLoader());
+        var dexfile = DexFileUtils.openDexFile(DexIO.write(
+                Dex.of(generateBridge(name, pool.erased))));
+        var clazz = DexFileUtils.loadClass(dexfile, name, loader);
+
+        var ptypes = pool.erased.parameterArray();
+        for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+            var backup = getDeclaredMethod(clazz, BACKUP_NAME + i, ptypes);
+            // The hook calls backup directly, so backup must never be inlined into it
+            ArtMethodUtils.makeExecutableNonCompilable(backup);
+            pool.free.push(new Entry(pool,
+                    getDeclaredMethod(clazz, HOOK_NAME + i, ptypes), backup,
+                    fieldOffset(getDeclaredField(clazz, FIELD_NAME + i))));
+        }
+    }
+
+    /**
+     * Acquires a free bridge for methods of the given raw type,
+     * new bridge classes are loaded only when the pool of its erased type is empty
+     */
+    static synchronized Slot acquire(MethodType type) {
+        var pool = pools.computeIfAbsent(type.erase(), Pool::new);
+        if (pool.free.isEmpty()) {
+            grow(pool);
+        }
+        var entry = pool.free.pop();
+        entry.acquired = true;
+        return new Slot(entry, entry.generation);
+    }
+}
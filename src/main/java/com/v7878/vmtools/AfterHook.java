@@ -0,0 +1,9 @@
+package com.v7878.vmtools;
+
+@FunctionalInterface
+public interface AfterHook {
+    /**
+     * Called after the original method, even if it has thrown an exception
+     */
+    void after(HookArguments args) throws Throwable;
+}
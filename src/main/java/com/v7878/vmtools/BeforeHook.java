@@ -0,0 +1,10 @@
+package com.v7878.vmtools;
+
+@FunctionalInterface
+public interface BeforeHook {
+    /**
+     * Called before the original method.
+     * Setting a result or throwable skips the original method
+     */
+    void before(HookArguments args) throws Throwable;
+}
@@ -0,0 +1,168 @@
+package com.v7878.vmtools;
+
+import static com.v7878.foreign.MemoryLayout.PathElement.groupElement;
+import static com.v7878.unsafe.ArtMethodUtils.ARTMETHOD_LAYOUT;
+import static com.v7878.unsafe.ArtModifiers.kAccCompileDontBother;
+import static com.v7878.unsafe.ArtVersion.A13;
+import static com.v7878.unsafe.ArtVersion.ART_INDEX;
+import static com.v7878.unsafe.Reflection.getArtMethod;
+
+import com.v7878.unsafe.AndroidUnsafe;
+import com.v7878.unsafe.ArtMethodUtils;
+import com.v7878.vmtools.Hooks.DeoptimizeResult;
+import com.v7878.vmtools.Hooks.ReoptimizeResult;
+
+import java.lang.reflect.Executable;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+final class Deoptimizer {
+    private Deoptimizer() {
+    }
+
+    // State of a method before its first deoptimization
+    private record Saved(int flags, int changed_flags, long entry_point) {
+    }
+
+    // Saved states by ArtMethod, grouped by declaring class. The class is held weakly,
+    // so the states of an unloaded class are dropped before its ArtMethods can be reused
+    private static final Map<Class<?>, Map<Long, Saved>> deoptimized = new WeakHashMap<>();
+
+    private static Map<Long, Saved> savedOf(Executable ex) {
+        return deoptimized.computeIfAbsent(ex.getDeclaringClass(), unused -> new HashMap<>());
+    }
+
+    private static Saved removeSaved(Executable ex, long art_method) {
+        var map = deoptimized.get(ex.getDeclaringClass());
+        return map == null ? null : map.remove(art_method);
+    }
+
+    /**
+     * Jit code may already be collected, so only art entry points
+     * and executable code outside of the jit cache are restored
+     */
+    private static boolean isRestorable(MMapSnapshot maps, long entry_point) {
+        if (EntryPoints.isRuntimeEntryPoint(entry_point)) {
+            return true;
+        }
+        int index = maps.find(entry_point);
+        return index >= 0 && (maps.perms(index) & MMap.PERM_EXEC) != 0 &&
+                !_Utils.isJitCachePath(maps.path(index));
+    }
+
+    private static Executable[] toArray(Collection<? extends Executable> methods) {
+        return methods.stream()
+                .filter(ex -> !Modifier.isAbstract(ex.getModifiers()))
+                .distinct().toArray(Executable[]::new);
+    }
+
+    static DeoptimizeResult deoptimize(Collection<? extends Executable> methods) {
+        return deoptimize("Deoptimize", methods);
+    }
+
+    static DeoptimizeResult deoptimize(String cause, Collection<? extends Executable> methods) {
+        ScopedSuspendAll.ensureNotHeld();
+        var array = toArray(methods);
+        if (array.length == 0) {
+            return new DeoptimizeResult(0, 0);
+        }
+        long[] entry_points = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            Hooks.ensureDeclaringClassInitialized(array[i]);
+            entry_points[i] = Hooks.getDirectEntryPoint(array[i]);
+        }
+        int[] old_flags = new int[array.length];
+        int[] new_flags = new int[array.length];
+        long[] old_entry_points = new long[array.length];
+        var scope = new ScopedSuspendAll(cause, false);
+        try (scope) {
+            for (int i = 0; i < array.length; i++) {
+                var ex = array[i];
+                old_flags[i] = ArtMethodUtils.getExecutableFlags(ex);
+                old_entry_points[i] = ArtMethodUtils.getExecutableEntryPoint(ex);
+                ArtMethodUtils.makeExecutableNonCompilable(ex);
+                ArtMethodUtils.setExecutableEntryPoint(ex, entry_points[i]);
+                new_flags[i] = ArtMethodUtils.getExecutableFlags(ex);
+            }
+        }
+        long pause = scope.holdNanos();
+        synchronized (deoptimized) {
+            for (int i = 0; i < array.length; i++) {
+                // Keep the state before the first deoptimization
+                savedOf(array[i]).putIfAbsent(getArtMethod(array[i]), new Saved(old_flags[i],
+                        old_flags[i] ^ new_flags[i], old_entry_points[i]));
+            }
+        }
+        return new DeoptimizeResult(array.length, pause);
+    }
+
+    static final long HOTNESS_OFFSET = ARTMETHOD_LAYOUT.byteOffset(groupElement("hotness_count_"));
+
+    static ReoptimizeResult reoptimize(Collection<? extends Executable> methods, boolean compile) {
+        ScopedSuspendAll.ensureNotHeld();
+        var array = toArray(methods);
+        if (array.length == 0) {
+            return new ReoptimizeResult(0, 0);
+        }
+        Saved[] saved = new Saved[array.length];
+        long[] bridges = new long[array.length];
+        long[] entry_points = new long[array.length];
+        long[] art_methods = new long[array.length];
+        synchronized (deoptimized) {
+            for (int i = 0; i < array.length; i++) {
+                art_methods[i] = getArtMethod(array[i]);
+                saved[i] = removeSaved(array[i], art_methods[i]);
+            }
+        }
+        var maps = MMapSnapshot.current();
+        for (int i = 0; i < array.length; i++) {
+            bridges[i] = Hooks.getDirectEntryPoint(array[i]);
+            var tmp = saved[i];
+            entry_points[i] = tmp == null || !isRestorable(maps, tmp.entry_point) ? 0 : tmp.entry_point;
+        }
+        // Starting with Android 13, the counter goes down and the method is compiled when it reaches zero
+        boolean request = compile && ART_INDEX >= A13;
+        boolean[] skipped = new boolean[array.length];
+        int count = 0;
+        var scope = new ScopedSuspendAll("Reoptimize", false);
+        try (scope) {
+            for (int i = 0; i < array.length; i++) {
+                var ex = array[i];
+                // Someone else, for example a hook, may have replaced the entry point
+                // after deoptimization, then the method is left as it is
+                if (ArtMethodUtils.getExecutableEntryPoint(ex) != bridges[i]) {
+                    skipped[i] = true;
+                    continue;
+                }
+                int flags = ArtMethodUtils.getExecutableFlags(ex);
+                var tmp = saved[i];
+                if (tmp == null) {
+                    ArtMethodUtils.changeExecutableFlags(ex, kAccCompileDontBother, 0);
+                } else {
+                    int mask = tmp.changed_flags;
+                    ArtMethodUtils.changeExecutableFlags(ex,
+                            flags & mask & ~tmp.flags, tmp.flags & mask & ~flags);
+                }
+                if (entry_points[i] != 0) {
+                    ArtMethodUtils.setExecutableEntryPoint(ex, entry_points[i]);
+                }
+                if (request && !Modifier.isNative(ex.getModifiers())) {
+                    AndroidUnsafe.putShortN(art_methods[i] + HOTNESS_OFFSET, (short) 1);
+                }
+                count++;
+            }
+        }
+        synchronized (deoptimized) {
+            for (int i = 0; i < array.length; i++) {
+                // Skipped methods keep their state before deoptimization for the next call
+                if (skipped[i] && saved[i] != null) {
+                    savedOf(array[i]).putIfAbsent(art_methods[i], saved[i]);
+                }
+            }
+        }
+        return new ReoptimizeResult(count, scope.holdNanos());
+    }
+}
@@ -5,7 +5,11 @@ import static com.v7878.dex.DexConstants.ACC_NATIVE;
 import static com.v7878.dex.DexConstants.ACC_PRIVATE;
 import static com.v7878.dex.DexConstants.ACC_PUBLIC;
 import static com.v7878.unsafe.ArtMethodUtils.getExecutableEntryPoint;
+import static com.v7878.unsafe.ArtVersion.A12;
+import static com.v7878.unsafe.ArtVersion.A14;
+import static com.v7878.unsafe.ArtVersion.ART_INDEX;
 import static com.v7878.unsafe.Reflection.getDeclaredMethod;
+import static com.v7878.unsafe.foreign.LibArt.ART;
 
 import com.v7878.dex.DexIO;
 import com.v7878.dex.builder.ClassBuilder;
@@ -14,13 +18,27 @@ import com.v7878.dex.immutable.Dex;
 import com.v7878.dex.immutable.MethodId;
 import com.v7878.dex.immutable.ProtoId;
 import com.v7878.dex.immutable.TypeId;
+import com.v7878.foreign.MemorySegment;
 import com.v7878.unsafe.DexFileUtils;
 
 import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 
+/**
+ * Every entry point is resolved on first use. Art symbols are used if libart exports them,
+ * art treats them the same as the trampolines from the boot image. Otherwise, the generic jni
+ * trampoline and the interpreter bridge are read from methods of a generated class,
+ * other entry points are 0.
+ */
 public class EntryPoints {
-    private static final long generic_jni_trampoline;
-    private static final long to_interpreter_bridge;
+    public record CodeRange(long start, long end) {
+        public boolean contains(long address) {
+            return Long.compareUnsigned(address, start) >= 0 &&
+                    Long.compareUnsigned(address, end) < 0;
+        }
+    }
 
     // Art can cache trampolines for common native call types, so we have to do something uncommon
     private static final MethodType JNI_TYPE = MethodType.methodType(Object.class,
@@ -31,42 +49,132 @@ public class EntryPoints {
             Object.class, int.class, long.class, float.class, double.class,
             Object.class, int.class, long.class, float.class, double.class);
 
-    static {
-        TypeId obj_id = TypeId.OBJECT;
+    private static class Probe {
+        static final Class<?> CLASS;
+
+        static {
+            TypeId obj_id = TypeId.OBJECT;
+
+            String test_name = EntryPoints.class.getName() + "$Test";
+            TypeId test_id = TypeId.ofName(test_name);
+
+            var jni_method_id = MethodId.of(test_id, "jni", ProtoId.of(JNI_TYPE));
+            var interpreter_method_id = MethodId.of(test_id, "interpreter", ProtoId.of(TypeId.V));
 
-        String test_name = EntryPoints.class.getName() + "$Test";
-        TypeId test_id = TypeId.ofName(test_name);
+            ClassDef test_def = ClassBuilder.build(test_id, cb -> cb
+                    .withSuperClass(obj_id)
+                    .withFlags(ACC_ABSTRACT)
+                    .withMethod(mb -> mb
+                            .of(jni_method_id)
+                            .withFlags(ACC_PRIVATE | ACC_NATIVE)
+                    )
+                    .withMethod(mb -> mb
+                            .of(interpreter_method_id)
+                            .withFlags(ACC_PUBLIC | ACC_ABSTRACT)
+                    )
+            );
 
-        var jni_method_id = MethodId.of(test_id, "jni", ProtoId.of(JNI_TYPE));
-        var interpreter_method_id = MethodId.of(test_id, "interpreter", ProtoId.of(TypeId.V));
+            var dexfile = DexFileUtils.openDexFile(DexIO.write(Dex.of(test_def)));
+            CLASS = DexFileUtils.loadClass(dexfile, test_name, EntryPoints.class.getClassLoader());
+        }
+    }
+
+    private static long find(String symbol, LongSupplier fallback) {
+        return ART.find(symbol).map(MemorySegment::nativeAddress)
+                .orElseGet(fallback::getAsLong);
+    }
 
-        ClassDef test_def = ClassBuilder.build(test_id, cb -> cb
-                .withSuperClass(obj_id)
-                .withFlags(ACC_ABSTRACT)
-                .withMethod(mb -> mb
-                        .of(jni_method_id)
-                        .withFlags(ACC_PRIVATE | ACC_NATIVE)
-                )
-                .withMethod(mb -> mb
-                        .of(interpreter_method_id)
-                        .withFlags(ACC_PUBLIC | ACC_ABSTRACT)
-                )
-        );
+    private static long find(String symbol) {
+        return find(symbol, () -> 0);
+    }
 
-        var dexfile = DexFileUtils.openDexFile(DexIO.write(Dex.of(test_def)));
-        var clazz = DexFileUtils.loadClass(dexfile, test_name, EntryPoints.class.getClassLoader());
+    private static class GenericJni {
+        static final long ENTRY_POINT = find("art_quick_generic_jni_trampoline",
+                () -> getExecutableEntryPoint(getDeclaredMethod(
+                        Probe.CLASS, "jni", JNI_TYPE.parameterArray())));
+    }
+
+    private static class ToInterpreter {
+        static final long ENTRY_POINT = find("art_quick_to_interpreter_bridge",
+                () -> getExecutableEntryPoint(getDeclaredMethod(Probe.CLASS, "interpreter")));
+    }
+
+    private static class Resolution {
+        static final long ENTRY_POINT = find("art_quick_resolution_trampoline");
+    }
+
+    private static class ImtConflict {
+        static final long ENTRY_POINT = find("art_quick_imt_conflict_trampoline");
+    }
 
-        generic_jni_trampoline = getExecutableEntryPoint(
-                getDeclaredMethod(clazz, "jni", JNI_TYPE.parameterArray()));
-        to_interpreter_bridge = getExecutableEntryPoint(
-                getDeclaredMethod(clazz, "interpreter"));
+    private static class Nterp {
+        static final long ENTRY_POINT = ART_INDEX >= A12 ? find("ExecuteNterpImpl") : 0;
+    }
+
+    private static class NterpWithClinit {
+        static final long ENTRY_POINT = ART_INDEX >= A14 ? find("ExecuteNterpWithClinitImpl") : 0;
     }
 
     public static long getGenericJniTrampoline() {
-        return generic_jni_trampoline;
+        return GenericJni.ENTRY_POINT;
     }
 
     public static long getToInterpreterBridge() {
-        return to_interpreter_bridge;
+        return ToInterpreter.ENTRY_POINT;
+    }
+
+    /**
+     * Entry point of methods whose code is not linked yet, 0 if not found
+     */
+    public static long getResolutionTrampoline() {
+        return Resolution.ENTRY_POINT;
+    }
+
+    /**
+     * Entry point of the conflict method of interface method tables, 0 if not found
+     */
+    public static long getImtConflictTrampoline() {
+        return ImtConflict.ENTRY_POINT;
+    }
+
+    /**
+     * Entry point of nterp (Android 12+), 0 if not found.
+     * Art runs only methods that pass its own checks in nterp, so it is not used by hooks
+     */
+    public static long getNterpEntryPoint() {
+        return Nterp.ENTRY_POINT;
+    }
+
+    /**
+     * Entry point of nterp for static methods of classes that are not initialized yet
+     * (Android 14+), 0 if not found
+     */
+    public static long getNterpWithClinitEntryPoint() {
+        return NterpWithClinit.ENTRY_POINT;
+    }
+
+    /**
+     * @return true if the address is one of the entry points of art itself
+     */
+    public static boolean isRuntimeEntryPoint(long address) {
+        return address != 0 && (address == getGenericJniTrampoline() ||
+                address == getToInterpreterBridge() ||
+                address == getResolutionTrampoline() ||
+                address == getImtConflictTrampoline() ||
+                address == getNterpEntryPoint() ||
+                address == getNterpWithClinitEntryPoint());
+    }
+
+    /**
+     * Executable mappings of jit code caches. They are read on every call,
+     * as the cache of the app is created after the zygote cache
+     */
+    public static List<CodeRange> getJitCodeRanges() {
+        try (var stream = MMap.maps("self")) {
+            return stream.filter(entry -> entry.perms().indexOf('x') >= 0 &&
+                            _Utils.isJitCachePath(entry.path()))
+                    .map(entry -> new CodeRange(entry.start(), entry.end()))
+                    .collect(Collectors.toList());
+        }
     }
 }
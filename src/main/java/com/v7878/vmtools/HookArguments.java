@@ -0,0 +1,434 @@
+package com.v7878.vmtools;
+
+import com.v7878.unsafe.AndroidUnsafe;
+
+import java.lang.reflect.Executable;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Arguments and result of a call intercepted by BeforeHook and AfterHook.
+ * Receiver (if any) is the argument with index 0.
+ * Instances are reused for every call on the same thread and nesting depth,
+ * so they MUST NOT be used after the callback returns.
+ * Public methods with one-letter suffixes are called by generated code.
+ */
+public final class HookArguments {
+    private static final class Frames {
+        HookArguments[] stack = new HookArguments[8];
+        int depth;
+
+        HookArguments push(Advice advice) {
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            var frame = stack[depth];
+            if (frame == null) {
+                frame = stack[depth] = new HookArguments(this);
+            }
+            depth++;
+            frame.reset(advice);
+            return frame;
+        }
+    }
+
+    private static final ThreadLocal<Frames> FRAMES = ThreadLocal.withInitial(Frames::new);
+
+    private final Frames frames;
+
+    private Advice advice;
+    private long[] primitives = new long[8];
+    private Object[] objects = new Object[8];
+    private int count;
+    private int cursor;
+
+    private boolean skip;
+    private long result;
+    private Object result_object;
+    private Throwable throwable;
+
+    // State of HookChain for this call
+    Object chain;
+    int chain_count;
+
+    private HookArguments(Frames frames) {
+        this.frames = frames;
+    }
+
+    private void reset(Advice advice) {
+        this.advice = advice;
+        if (primitives.length < advice.count) {
+            primitives = new long[advice.count];
+            objects = new Object[advice.count];
+        }
+        count = 0;
+        cursor = 0;
+        skip = false;
+        result = 0;
+        result_object = null;
+        throwable = null;
+        chain = null;
+        chain_count = 0;
+    }
+
+    boolean isSkipped() {
+        return skip;
+    }
+
+    public static HookArguments enter(Object advice) {
+        return FRAMES.get().push((Advice) advice);
+    }
+
+    public void pushZ(boolean value) {
+        primitives[count++] = value ? 1 : 0;
+    }
+
+    public void pushB(byte value) {
+        primitives[count++] = value;
+    }
+
+    public void pushC(char value) {
+        primitives[count++] = value;
+    }
+
+    public void pushS(short value) {
+        primitives[count++] = value;
+    }
+
+    public void pushI(int value) {
+        primitives[count++] = value;
+    }
+
+    public void pushJ(long value) {
+        primitives[count++] = value;
+    }
+
+    public void pushF(float value) {
+        primitives[count++] = Float.floatToRawIntBits(value);
+    }
+
+    public void pushD(double value) {
+        primitives[count++] = Double.doubleToRawLongBits(value);
+    }
+
+    public void pushL(Object value) {
+        objects[count++] = value;
+    }
+
+    /**
+     * @return true if the original method must be skipped
+     */
+    public boolean runBefore() {
+        var before = advice.before;
+        if (before != null) {
+            try {
+                before.before(this);
+            } catch (Throwable th) {
+                setThrowable(th);
+            }
+        }
+        cursor = 0;
+        return skip;
+    }
+
+    public boolean popZ() {
+        return primitives[cursor++] != 0;
+    }
+
+    public byte popB() {
+        return (byte) primitives[cursor++];
+    }
+
+    public char popC() {
+        return (char) primitives[cursor++];
+    }
+
+    public short popS() {
+        return (short) primitives[cursor++];
+    }
+
+    public int popI() {
+        return (int) primitives[cursor++];
+    }
+
+    public long popJ() {
+        return primitives[cursor++];
+    }
+
+    public float popF() {
+        return Float.intBitsToFloat((int) primitives[cursor++]);
+    }
+
+    public double popD() {
+        return Double.longBitsToDouble(primitives[cursor++]);
+    }
+
+    public Object popL() {
+        return objects[cursor++];
+    }
+
+    public void storeResultZ(boolean value) {
+        result = value ? 1 : 0;
+    }
+
+    public void storeResultB(byte value) {
+        result = value;
+    }
+
+    public void storeResultC(char value) {
+        result = value;
+    }
+
+    public void storeResultS(short value) {
+        result = value;
+    }
+
+    public void storeResultI(int value) {
+        result = value;
+    }
+
+    public void storeResultJ(long value) {
+        result = value;
+    }
+
+    public void storeResultF(float value) {
+        result = Float.floatToRawIntBits(value);
+    }
+
+    public void storeResultD(double value) {
+        result = Double.doubleToRawLongBits(value);
+    }
+
+    public void storeResultL(Object value) {
+        result_object = value;
+    }
+
+    public void storeThrowable(Throwable value) {
+        throwable = value;
+    }
+
+    /**
+     * Leaves the frame and rethrows the throwable, if any
+     */
+    public void runAfter() {
+        var after = advice.after;
+        if (after != null) {
+            try {
+                after.after(this);
+            } catch (Throwable th) {
+                throwable = th;
+            }
+        }
+        Arrays.fill(objects, 0, count, null);
+        frames.depth--;
+        var th = throwable;
+        if (th != null) {
+            throwable = null;
+            AndroidUnsafe.throwException(th);
+        }
+    }
+
+    public boolean resultZ() {
+        return result != 0;
+    }
+
+    public byte resultB() {
+        return (byte) result;
+    }
+
+    public char resultC() {
+        return (char) result;
+    }
+
+    public short resultS() {
+        return (short) result;
+    }
+
+    public int resultI() {
+        return (int) result;
+    }
+
+    public long resultJ() {
+        return result;
+    }
+
+    public float resultF() {
+        return Float.intBitsToFloat((int) result);
+    }
+
+    public double resultD() {
+        return Double.longBitsToDouble(result);
+    }
+
+    public Object resultL() {
+        var value = result_object;
+        result_object = null;
+        return value;
+    }
+
+    public Executable method() {
+        return advice.method;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean getBoolean(int index) {
+        return primitives[Objects.checkIndex(index, count)] != 0;
+    }
+
+    public byte getByte(int index) {
+        return (byte) primitives[Objects.checkIndex(index, count)];
+    }
+
+    public char getChar(int index) {
+        return (char) primitives[Objects.checkIndex(index, count)];
+    }
+
+    public short getShort(int index) {
+        return (short) primitives[Objects.checkIndex(index, count)];
+    }
+
+    public int getInt(int index) {
+        return (int) primitives[Objects.checkIndex(index, count)];
+    }
+
+    public long getLong(int index) {
+        return primitives[Objects.checkIndex(index, count)];
+    }
+
+    public float getFloat(int index) {
+        return Float.intBitsToFloat(getInt(index));
+    }
+
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(getLong(index));
+    }
+
+    public Object getObject(int index) {
+        return objects[Objects.checkIndex(index, count)];
+    }
+
+    public void setBoolean(int index, boolean value) {
+        primitives[Objects.checkIndex(index, count)] = value ? 1 : 0;
+    }
+
+    public void setByte(int index, byte value) {
+        primitives[Objects.checkIndex(index, count)] = value;
+    }
+
+    public void setChar(int index, char value) {
+        primitives[Objects.checkIndex(index, count)] = value;
+    }
+
+    public void setShort(int index, short value) {
+        primitives[Objects.checkIndex(index, count)] = value;
+    }
+
+    public void setInt(int index, int value) {
+        primitives[Objects.checkIndex(index, count)] = value;
+    }
+
+    public void setLong(int index, long value) {
+        primitives[Objects.checkIndex(index, count)] = value;
+    }
+
+    public void setFloat(int index, float value) {
+        setInt(index, Float.floatToRawIntBits(value));
+    }
+
+    public void setDouble(int index, double value) {
+        setLong(index, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * The value MUST be an instance of the parameter type
+     */
+    public void setObject(int index, Object value) {
+        objects[Objects.checkIndex(index, count)] = value;
+    }
+
+    public boolean getResultBoolean() {
+        return resultZ();
+    }
+
+    public int getResultInt() {
+        return resultI();
+    }
+
+    public long getResultLong() {
+        return resultJ();
+    }
+
+    public float getResultFloat() {
+        return resultF();
+    }
+
+    public double getResultDouble() {
+        return resultD();
+    }
+
+    public Object getResultObject() {
+        return result_object;
+    }
+
+    /**
+     * Also used for byte, char and short results
+     */
+    public void setResultInt(int value) {
+        skip = true;
+        storeResultI(value);
+    }
+
+    public void setResultBoolean(boolean value) {
+        skip = true;
+        storeResultZ(value);
+    }
+
+    public void setResultLong(long value) {
+        skip = true;
+        storeResultJ(value);
+    }
+
+    public void setResultFloat(float value) {
+        skip = true;
+        storeResultF(value);
+    }
+
+    public void setResultDouble(double value) {
+        skip = true;
+        storeResultD(value);
+    }
+
+    /**
+     * The value MUST be an instance of the return type
+     */
+    public void setResultObject(Object value) {
+        skip = true;
+        storeResultL(value);
+    }
+
+    /**
+     * Also used for void methods
+     */
+    public void setResultVoid() {
+        skip = true;
+    }
+
+    public boolean hasThrowable() {
+        return throwable != null;
+    }
+
+    public Throwable getThrowable() {
+        return throwable;
+    }
+
+    /**
+     * Null value clears the throwable, so that the result is returned
+     */
+    public void setThrowable(Throwable value) {
+        skip = true;
+        throwable = value;
+    }
+}
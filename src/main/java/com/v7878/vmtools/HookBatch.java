@@ -0,0 +1,267 @@
+package com.v7878.vmtools;
+
+import static com.v7878.vmtools._Utils.rawMethodTypeOf;
+
+import com.v7878.vmtools.Hooks.EntryPointType;
+import com.v7878.vmtools.Hooks.Patch;
+import com.v7878.vmtools.Hooks.TargetMode;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Executable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Collects hooks and installs all of them inside a single ScopedSuspendAll.
+ * Trampolines are built when a hook is added, so commit only patches methods.
+ * Entry points of type CURRENT are resolved when a hook is added, not when it is committed.
+ * HookTransformer hooks are prepared on commit, so that invokers for all of them
+ * are generated into a single dex file.
+ */
+public final class HookBatch {
+    /**
+     * @param pause_nanos time the threads were held suspended while the patches were applied
+     */
+    public record Result(int patched, long pause_nanos, HookHandle handle) {
+    }
+
+    // Hooks that are prepared when they are added
+    private record Prepared(Patch[] patches) implements Supplier<Patch[]> {
+        @Override
+        public Patch[] get() {
+            return patches;
+        }
+    }
+
+    private final List<Supplier<Patch[]>> entries = new ArrayList<>();
+    private final List<MethodType> invoker_types = new ArrayList<>();
+    private boolean committed;
+
+    private HookBatch add(Supplier<Patch[]> entry) {
+        if (committed) {
+            throw new IllegalStateException("Batch is already committed");
+        }
+        entries.add(entry);
+        return this;
+    }
+
+    private HookBatch add(Patch... patches) {
+        return add(new Prepared(patches));
+    }
+
+    /**
+     * target -> hooker
+     * hooker is unchanged
+     */
+    public HookBatch hook(Executable target, TargetMode target_mode,
+                          Executable hooker, EntryPointType hooker_type) {
+        return add(Hooks.prepareHook(target, target_mode, hooker, hooker_type));
+    }
+
+    /**
+     * target -> hooker
+     * hooker is unchanged
+     */
+    public HookBatch hook(Executable target, Executable hooker, EntryPointType hooker_type) {
+        return hook(target, TargetMode.NON_COMPILABLE, hooker, hooker_type);
+    }
+
+    /**
+     * first -> second
+     * second -> first
+     */
+    public HookBatch hookSwap(Executable first, EntryPointType first_type,
+                              Executable second, EntryPointType second_type,
+                              TargetMode mode) {
+        return add(Hooks.prepareHookSwap(first, first_type, mode, second, second_type, mode));
+    }
+
+    /**
+     * first -> second
+     * second -> first
+     */
+    public HookBatch hookSwap(Executable first, EntryPointType first_type,
+                              Executable second, EntryPointType second_type) {
+        return hookSwap(first, first_type, second, second_type, TargetMode.NON_COMPILABLE);
+    }
+
+    /**
+     * target -> hooker
+     * backup -> target
+     * hooker is unchanged
+     */
+    public HookBatch hookBackup(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                Executable hooker, EntryPointType hooker_type,
+                                Executable backup) {
+        return add(Hooks.prepareHookBackup(target, target_type,
+                target_mode, hooker, hooker_type, backup));
+    }
+
+    /**
+     * target -> hooker
+     * backup -> target
+     * hooker is unchanged
+     */
+    public HookBatch hookBackup(Executable target, EntryPointType target_type,
+                                Executable hooker, EntryPointType hooker_type,
+                                Executable backup) {
+        return hookBackup(target, target_type, TargetMode.NON_COMPILABLE, hooker, hooker_type, backup);
+    }
+
+    /**
+     * target -> hooker
+     * original (parameter of transformer) -> target
+     */
+    public HookBatch hook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                          HookTransformer hooker, EntryPointType hooker_type) {
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(hooker);
+        add(() -> Hooks.prepareHook(target, target_type, target_mode, hooker, hooker_type));
+        invoker_types.add(rawMethodTypeOf(target).erase());
+        return this;
+    }
+
+    /**
+     * target -> hooker
+     * original (parameter of transformer) -> target
+     */
+    public HookBatch hook(Executable target, EntryPointType target_type,
+                          HookTransformer hooker, EntryPointType hooker_type) {
+        return hook(target, target_type, TargetMode.NON_COMPILABLE, hooker, hooker_type);
+    }
+
+    /**
+     * target -> callback
+     * original (parameter of callback factory) -> target
+     */
+    public <T> HookBatch hook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                              Class<T> callback_type, Function<MethodHandle, T> callback,
+                              EntryPointType hooker_type) {
+        return add(Hooks.prepareHook(target, target_type, target_mode, callback_type, callback, hooker_type));
+    }
+
+    /**
+     * target -> callback
+     * original (parameter of callback factory) -> target
+     */
+    public <T> HookBatch hook(Executable target, EntryPointType target_type,
+                              Class<T> callback_type, Function<MethodHandle, T> callback,
+                              EntryPointType hooker_type) {
+        return hook(target, target_type, TargetMode.NON_COMPILABLE, callback_type, callback, hooker_type);
+    }
+
+    /**
+     * target -> before, original, after
+     * before or after may be null
+     */
+    public HookBatch hook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                          BeforeHook before, AfterHook after, EntryPointType hooker_type) {
+        return add(Hooks.prepareHook(target, target_type, target_mode, before, after, hooker_type));
+    }
+
+    /**
+     * target -> before, original, after
+     * before or after may be null
+     */
+    public HookBatch hook(Executable target, EntryPointType target_type,
+                          BeforeHook before, AfterHook after, EntryPointType hooker_type) {
+        return hook(target, target_type, TargetMode.NON_COMPILABLE, before, after, hooker_type);
+    }
+
+    /**
+     * Number of added hooks
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * If some hook cannot be prepared, all hooks of the batch are released
+     */
+    private Patch[] prepare() {
+        if (committed) {
+            throw new IllegalStateException("Batch is already committed");
+        }
+        committed = true;
+        List<Patch> patches = new ArrayList<>();
+        int index = 0;
+        try {
+            InvokerPool.reserve(invoker_types);
+            for (; index < entries.size(); index++) {
+                Collections.addAll(patches, entries.get(index).get());
+            }
+        } catch (Throwable th) {
+            Hooks.releasePatches(patches.toArray(new Patch[0]));
+            // Hooks that are prepared when they are added, but not collected yet
+            for (index++; index < entries.size(); index++) {
+                if (entries.get(index) instanceof Prepared prepared) {
+                    Hooks.releasePatches(prepared.patches());
+                }
+            }
+            throw th;
+        }
+        return patches.toArray(new Patch[0]);
+    }
+
+    private static long apply(Thread[] threads, Patch[] array) {
+        try {
+            return Hooks.applyPatches(threads, array);
+        } catch (Throwable th) {
+            // Nothing is applied, so nothing can jump to the trampolines
+            Hooks.releasePatches(array);
+            throw th;
+        }
+    }
+
+    /**
+     * If the batch fails, all its hooks are released and it cannot be committed again
+     */
+    public Result commit() {
+        var array = prepare();
+        if (array.length == 0) {
+            return new Result(0, 0, new HookHandle(array));
+        }
+        long pause = apply(null, array);
+        return new Result(array.length, pause, new HookHandle(array));
+    }
+
+    /**
+     * Suspends only the given threads instead of all of them, so the rest of the
+     * process is not paused. The threads that are not suspended MUST NOT call the targets
+     * or compile them while they are patched, as they may see a partially patched method.
+     */
+    public Result commit(Thread... threads) {
+        Objects.requireNonNull(threads);
+        var array = prepare();
+        if (array.length == 0) {
+            return new Result(0, 0, new HookHandle(array));
+        }
+        long pause = apply(threads, array);
+        return new Result(array.length, pause, new HookHandle(array));
+    }
+
+    /**
+     * Patches are applied together with batches committed by other threads within
+     * the coalescing window, pause_nanos of the result is the duration of the shared pause
+     */
+    public CompletableFuture<Result> commitAsync() {
+        var array = prepare();
+        if (array.length == 0) {
+            return CompletableFuture.completedFuture(new Result(0, 0, new HookHandle(array)));
+        }
+        return PatchCoalescer.submit(array);
+    }
+
+    /**
+     * Sets how long commitAsync waits for other batches before patching
+     */
+    public static void setCoalescingWindow(long millis) {
+        PatchCoalescer.setWindow(millis);
+    }
+}
@@ -0,0 +1,180 @@
+package com.v7878.vmtools;
+
+import static com.v7878.unsafe.Reflection.getArtMethod;
+
+import com.v7878.unsafe.Utils.FineClosable;
+import com.v7878.vmtools.Hooks.EntryPointType;
+import com.v7878.vmtools.Hooks.TargetMode;
+
+import java.lang.reflect.Executable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Several advice hooks sharing one target.
+ * The target is patched once, when the chain is created. Links are kept in
+ * a copy-on-write array, so adding and removing them never suspends threads
+ * and calls of the target never take locks.
+ * BeforeHooks are called in order of decreasing priority, until one of them
+ * sets a result, AfterHooks of the called links are called in reverse order.
+ */
+public final class HookChain implements FineClosable {
+    public static final class Link implements FineClosable {
+        private final HookChain chain;
+        private final int priority;
+        private final BeforeHook before;
+        private final AfterHook after;
+
+        private Link(HookChain chain, int priority, BeforeHook before, AfterHook after) {
+            this.chain = chain;
+            this.priority = priority;
+            this.before = before;
+            this.after = after;
+        }
+
+        public int priority() {
+            return priority;
+        }
+
+        @Override
+        public void close() {
+            chain.remove(this);
+        }
+    }
+
+    private static final Link[] EMPTY = new Link[0];
+    private static final Map<Long, HookChain> chains = new HashMap<>();
+
+    private final Executable target;
+    private final long art_method;
+    private final EntryPointType target_type;
+    private final TargetMode target_mode;
+    private volatile Link[] links = EMPTY;
+    private HookHandle handle;
+
+    private HookChain(Executable target, long art_method,
+                      EntryPointType target_type, TargetMode target_mode) {
+        this.target = target;
+        this.art_method = art_method;
+        this.target_type = target_type;
+        this.target_mode = target_mode;
+    }
+
+    /**
+     * Returns the chain of target, the target is hooked by the first call
+     *
+     * @throws IllegalArgumentException if the chain already exists with another target_type or target_mode
+     */
+    public static HookChain of(Executable target, EntryPointType target_type, TargetMode target_mode) {
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(target_type);
+        Objects.requireNonNull(target_mode);
+        long art_method = getArtMethod(target);
+        synchronized (chains) {
+            var chain = chains.get(art_method);
+            if (chain == null) {
+                chain = new HookChain(target, art_method, target_type, target_mode);
+                chain.handle = Hooks.hook(target, target_type, target_mode,
+                        chain::before, chain::after, EntryPointType.DYNAMIC);
+                chains.put(art_method, chain);
+            } else if (chain.target_type != target_type || chain.target_mode != target_mode) {
+                throw new IllegalArgumentException(String.format(
+                        "Chain of %s already exists with %s and %s, requested %s and %s", target,
+                        chain.target_type, chain.target_mode, target_type, target_mode));
+            }
+            return chain;
+        }
+    }
+
+    public static HookChain of(Executable target) {
+        return of(target, EntryPointType.CURRENT, TargetMode.NON_COMPILABLE);
+    }
+
+    public Executable target() {
+        return target;
+    }
+
+    public int size() {
+        return links.length;
+    }
+
+    /**
+     * before or after may be null
+     */
+    public Link add(int priority, BeforeHook before, AfterHook after) {
+        if (before == null && after == null) {
+            throw new IllegalArgumentException("Both before and after are null");
+        }
+        var link = new Link(this, priority, before, after);
+        synchronized (this) {
+            var old = links;
+            int index = 0;
+            // Links with the same priority are kept in order of addition
+            while (index < old.length && old[index].priority >= priority) {
+                index++;
+            }
+            var tmp = new Link[old.length + 1];
+            System.arraycopy(old, 0, tmp, 0, index);
+            tmp[index] = link;
+            System.arraycopy(old, index, tmp, index + 1, old.length - index);
+            links = tmp;
+        }
+        return link;
+    }
+
+    private synchronized void remove(Link link) {
+        var old = links;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == link) {
+                var tmp = new Link[old.length - 1];
+                System.arraycopy(old, 0, tmp, 0, i);
+                System.arraycopy(old, i + 1, tmp, i, old.length - i - 1);
+                links = tmp;
+                return;
+            }
+        }
+    }
+
+    private void before(HookArguments args) throws Throwable {
+        var snapshot = links;
+        // AfterHooks are called for the same links even if the chain is changed meanwhile
+        args.chain = snapshot;
+        for (int i = 0; i < snapshot.length && !args.isSkipped(); i++) {
+            args.chain_count = i + 1;
+            var before = snapshot[i].before;
+            if (before != null) {
+                before.before(args);
+            }
+        }
+    }
+
+    private void after(HookArguments args) throws Throwable {
+        if (!(args.chain instanceof Link[] snapshot)) {
+            return;
+        }
+        for (int i = args.chain_count - 1; i >= 0; i--) {
+            var after = snapshot[i].after;
+            if (after != null) {
+                after.after(args);
+            }
+        }
+    }
+
+    /**
+     * Removes all links and restores the target
+     */
+    @Override
+    public void close() {
+        synchronized (chains) {
+            if (chains.get(art_method) != this) {
+                return;
+            }
+            chains.remove(art_method);
+        }
+        synchronized (this) {
+            links = EMPTY;
+        }
+        handle.close();
+    }
+}
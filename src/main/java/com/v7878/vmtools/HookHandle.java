@@ -0,0 +1,50 @@
+package com.v7878.vmtools;
+
+import com.v7878.unsafe.Utils.FineClosable;
+import com.v7878.vmtools.Hooks.Patch;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Restores the entry points, access flags and compilability of all methods
+ * patched by one hook call and frees their trampolines.
+ * Everything is restored inside a single ScopedSuspendAll.
+ */
+public final class HookHandle implements FineClosable {
+    private final Patch[] patches;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    HookHandle(Patch[] patches) {
+        this.patches = patches;
+    }
+
+    /**
+     * If the patches cannot be applied, they are released
+     */
+    static HookHandle apply(Patch... patches) {
+        try {
+            Hooks.applyPatches(patches);
+        } catch (Throwable th) {
+            Hooks.releasePatches(patches);
+            throw th;
+        }
+        return new HookHandle(patches);
+    }
+
+    public int size() {
+        return patches.length;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public void close() {
+        // Checked first, so that the handle is not marked as closed if it cannot be restored
+        ScopedSuspendAll.ensureNotHeld();
+        if (closed.compareAndSet(false, true)) {
+            Hooks.restorePatches(patches);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.v7878.vmtools;
+
+import java.lang.reflect.Executable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Invocation counters and call time histogram of one HookTransformer hook.
+ * Call time is measured around the transformer, so it is the total time of the hooked call,
+ * including the original method if the transformer calls it, not the overhead of the hook.
+ * Hooks are instrumented only if they are installed while stats are enabled,
+ * other hooks do not pay anything.
+ * The histogram is log-linear: every power of two is split into 8 buckets,
+ * so the relative error of percentiles is below 12.5%.
+ */
+public final class HookStats {
+    /**
+     * @param call_nanos sum of call times of all calls
+     * @param histogram  counts of calls per bucket of call time
+     */
+    public record Snapshot(Executable target, long calls, long exceptions,
+                           long call_nanos, long[] histogram) {
+        public double meanCallNanos() {
+            return calls == 0 ? 0 : (double) call_nanos / calls;
+        }
+
+        /**
+         * @return lower bound of the call time bucket that contains the given percentile
+         */
+        public long percentileCallNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile: " + percentile);
+            }
+            long total = 0;
+            for (long count : histogram) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return bucketLowerBound(i);
+                }
+            }
+            return bucketLowerBound(histogram.length - 1);
+        }
+    }
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private static volatile boolean enabled;
+    private static final List<HookStats> registry = new ArrayList<>();
+
+    private final Executable target;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder exceptions = new LongAdder();
+    private final LongAdder call_nanos = new LongAdder();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    private HookStats(Executable target) {
+        this.target = target;
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_COUNT) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        return (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    static HookStats register(Executable target) {
+        var stats = new HookStats(Objects.requireNonNull(target));
+        synchronized (registry) {
+            registry.add(stats);
+        }
+        return stats;
+    }
+
+    static void unregister(HookStats stats) {
+        synchronized (registry) {
+            registry.remove(stats);
+        }
+    }
+
+    static List<Snapshot> snapshots() {
+        HookStats[] all;
+        synchronized (registry) {
+            all = registry.toArray(new HookStats[0]);
+        }
+        List<Snapshot> out = new ArrayList<>(all.length);
+        for (var stats : all) {
+            out.add(stats.snapshot());
+        }
+        return out;
+    }
+
+    HookTransformer instrument(HookTransformer transformer) {
+        Objects.requireNonNull(transformer);
+        return (original, stack) -> {
+            long start = System.nanoTime();
+            try {
+                transformer.transform(original, stack);
+            } catch (Throwable th) {
+                exceptions.increment();
+                throw th;
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    private void record(long nanos) {
+        calls.increment();
+        call_nanos.add(nanos);
+        histogram.incrementAndGet(bucketOf(nanos));
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histogram.get(i);
+        }
+        return new Snapshot(target, calls.sum(), exceptions.sum(), call_nanos.sum(), buckets);
+    }
+}
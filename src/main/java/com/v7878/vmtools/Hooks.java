@@ -1,39 +1,19 @@
 package com.v7878.vmtools;
 
 import static com.v7878.dex.DexConstants.ACC_CONSTRUCTOR;
-import static com.v7878.dex.DexConstants.ACC_FINAL;
-import static com.v7878.dex.DexConstants.ACC_PRIVATE;
-import static com.v7878.dex.DexConstants.ACC_PUBLIC;
 import static com.v7878.dex.DexConstants.ACC_STATIC;
-import static com.v7878.dex.builder.CodeBuilder.Op.GET_OBJECT;
+import static com.v7878.foreign.MemoryLayout.PathElement.groupElement;
+import static com.v7878.unsafe.ArtMethodUtils.ARTMETHOD_LAYOUT;
 import static com.v7878.unsafe.ArtModifiers.kAccFastInterpreterToInterpreterInvoke;
-import static com.v7878.unsafe.InstructionSet.CURRENT_INSTRUCTION_SET;
-import static com.v7878.unsafe.Reflection.fieldOffset;
+import static com.v7878.unsafe.ArtVersion.A14;
+import static com.v7878.unsafe.ArtVersion.ART_INDEX;
 import static com.v7878.unsafe.Reflection.getArtMethod;
-import static com.v7878.unsafe.Reflection.getDeclaredField;
 import static com.v7878.unsafe.Reflection.getDeclaredMethod;
 import static com.v7878.unsafe.Reflection.unreflect;
 import static com.v7878.vmtools._Utils.rawMethodTypeOf;
 
-import com.v7878.dex.DexIO;
-import com.v7878.dex.builder.ClassBuilder;
-import com.v7878.dex.immutable.ClassDef;
-import com.v7878.dex.immutable.Dex;
-import com.v7878.dex.immutable.FieldId;
-import com.v7878.dex.immutable.MethodId;
-import com.v7878.dex.immutable.ProtoId;
-import com.v7878.dex.immutable.TypeId;
-import com.v7878.foreign.Arena;
-import com.v7878.foreign.MemorySegment;
-import com.v7878.sun.cleaner.SunCleaner;
-import com.v7878.unsafe.AndroidUnsafe;
 import com.v7878.unsafe.ArtMethodUtils;
 import com.v7878.unsafe.ClassUtils;
-import com.v7878.unsafe.DexFileUtils;
-import com.v7878.unsafe.NativeCodeBlob;
-import com.v7878.unsafe.Utils;
-import com.v7878.unsafe.Utils.WeakReferenceCache;
-import com.v7878.unsafe.access.InvokeAccess;
 import com.v7878.unsafe.invoke.MethodHandlesImpl;
 import com.v7878.unsafe.invoke.Transformers;
 import com.v7878.vmtools.Runtime.DebugState;
@@ -41,23 +21,42 @@ import com.v7878.vmtools.Runtime.DebugState;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Executable;
-import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class Hooks {
     static {
         // Classes cannot be loaded and initialized during "SuspendAll"
+        // Flags of the method are restored, so that it stays compilable
         {
-            ClassUtils.ensureClassInitialized(EntryPoints.class);
             var method = getDeclaredMethod(Runnable.class, "run");
+            int flags = ArtMethodUtils.getExecutableFlags(method);
             ArtMethodUtils.makeExecutableNonCompilable(method);
+            int changed = ArtMethodUtils.getExecutableFlags(method);
+            ArtMethodUtils.changeExecutableFlags(method, changed & ~flags, flags & ~changed);
+        }
+    }
+
+    /**
+     * The runtime is switched to kNonJavaDebuggable before the first patch is prepared,
+     * so that processes that only deoptimize methods or never hook anything keep their state
+     */
+    private static class DebugStateHolder {
+        static {
+            Runtime.setRuntimeDebugState(DebugState.kNonJavaDebuggable);
         }
 
-        Runtime.setRuntimeDebugState(DebugState.kNonJavaDebuggable);
+        static void ensure() {
+            // Initialization does the work
+        }
     }
 
-    private static void ensureDeclaringClassInitialized(Executable ex) {
+    static void ensureDeclaringClassInitialized(Executable ex) {
         int flags = ArtMethodUtils.getExecutableFlags(ex);
         // For static constructor hook, the class CANNOT be initialized
         if ((flags & ACC_CONSTRUCTOR) == 0 || (flags & ACC_STATIC) == 0) {
@@ -66,137 +65,445 @@ public class Hooks {
     }
 
     public static void deoptimize(Executable ex) {
-        ensureDeclaringClassInitialized(ex);
-        try (var ignored = new ScopedSuspendAll(false)) {
-            ArtMethodUtils.makeExecutableNonCompilable(ex);
-            long entry_point = Modifier.isNative(ex.getModifiers()) ?
-                    EntryPoints.getGenericJniTrampoline() :
-                    EntryPoints.getToInterpreterBridge();
-            ArtMethodUtils.setExecutableEntryPoint(ex, entry_point);
+        deoptimize(List.of(ex));
+    }
+
+    public record DeoptimizeResult(int deoptimized, long pause_nanos) {
+    }
+
+    /**
+     * Deoptimizes all methods inside a single ScopedSuspendAll
+     * Abstract methods are skipped, as they have no code
+     */
+    public static DeoptimizeResult deoptimize(Collection<? extends Executable> methods) {
+        return Deoptimizer.deoptimize(methods);
+    }
+
+    /**
+     * Deoptimizes declared methods and constructors of the classes that match the filter
+     */
+    public static DeoptimizeResult deoptimize(Collection<? extends Class<?>> classes,
+                                              Predicate<? super Executable> filter) {
+        Objects.requireNonNull(filter);
+        List<Executable> methods = new ArrayList<>();
+        for (var clazz : classes) {
+            for (var method : clazz.getDeclaredMethods()) {
+                if (filter.test(method)) {
+                    methods.add(method);
+                }
+            }
+            for (var constructor : clazz.getDeclaredConstructors()) {
+                if (filter.test(constructor)) {
+                    methods.add(constructor);
+                }
+            }
         }
+        return deoptimize(methods);
+    }
+
+    public record ReoptimizeResult(int reoptimized, long pause_nanos) {
+    }
+
+    /**
+     * Undoes deoptimize: makes methods compilable again and restores their entry points
+     * Methods whose entry points no longer point to the bridges set by deoptimize,
+     * for example hooked ones, are left untouched and are not counted
+     * Jit code is never restored, as it may already be collected
+     *
+     * @param compile starting with Android 13, asks jit to compile methods on their next call
+     */
+    public static ReoptimizeResult reoptimize(Collection<? extends Executable> methods, boolean compile) {
+        return Deoptimizer.reoptimize(methods, compile);
     }
 
-    private static byte[] toArray(long value) {
-        //noinspection PointlessBitwiseExpression
-        return new byte[]{
-                (byte) (value >> 0),
-                (byte) (value >> 8),
-                (byte) (value >> 16),
-                (byte) (value >> 24),
-                (byte) (value >> 32),
-                (byte) (value >> 40),
-                (byte) (value >> 48),
-                (byte) (value >> 56)
-        };
-    }
-
-    private static byte[] getTrampolineArray(long art_method, long entry_point) {
-        byte[] m = toArray(art_method);
-        byte[] e = toArray(entry_point);
-        return switch (CURRENT_INSTRUCTION_SET) {
-            case X86 -> new byte[]{
-                    // b8 <m0 m1 m2 m3> ; mov eax, art_method
-                    // 68 <e0 e1 e2 e3> ; push entry_point
-                    // c3 ; ret
-                    (byte) 0xb8, m[0], m[1], m[2], m[3],
-                    0x68, e[0], e[1], e[2], e[3],
-                    (byte) 0xc3
-            };
-            case X86_64 -> new byte[]{
-                    // 48 bf <e0 e1 e2 e3 e4 e5 e6 e7> ; movabs rdi, entry_point
-                    // 57 ; push rdi
-                    // 48 bf <m0 m1 m2 m3 m4 m5 m6 m7> ; movabs rdi, art_method
-                    // c3 ; ret
-                    0x48, (byte) 0xbf, e[0], e[1], e[2], e[3], e[4], e[5], e[6], e[7],
-                    0x57,
-                    0x48, (byte) 0xbf, m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7],
-                    (byte) 0xc3
-            };
-            case ARM -> new byte[]{
-                    // 0C 00 9F E5 ; ldr r0, [pc, #12]
-                    // 01 00 2D E9 ; stmdb sp!, {r0} ; push {r0}
-                    // 00 00 9F E5 ; ldr r0, [pc, #0]
-                    // 00 80 BD E8 ; ldm sp!, {pc} ; pop {pc}
-                    // <m0 m1 m2 m3> ; art_method
-                    // <e0 e1 e2 e3> ; entry_point
-                    0x0c, 0x00, (byte) 0x9f, (byte) 0xe5,
-                    0x01, 0x00, 0x2d, (byte) 0xe9,
-                    0x00, 0x00, (byte) 0x9f, (byte) 0xe5,
-                    0x00, (byte) 0x80, (byte) 0xbd, (byte) 0xe8,
-                    m[0], m[1], m[2], m[3],
-                    e[0], e[1], e[2], e[3]
-            };
-            case ARM64 -> new byte[]{
-                    // 60 00 00 58 ; ldr x0, #12
-                    // 90 00 00 58 ; ldr x16, #16
-                    // 00 02 1f d6 ; br x16
-                    // <m0 m1 m2 m3 m4 m5 m6 m7> ; art_method
-                    // <e0 e1 e2 e3 e4 e5 e6 e7> ; entry_point
-                    0x60, 0x00, 0x00, 0x58,
-                    (byte) 0x90, 0x00, 0x00, 0x58,
-                    0x00, 0x02, 0x1f, (byte) 0xd6,
-                    m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7],
-                    e[0], e[1], e[2], e[3], e[4], e[5], e[6], e[7]
-            };
-            //TODO: riscv64
-            default -> throw new UnsupportedOperationException("Not supported yet!");
-        };
+    public static void reoptimize(Executable ex, boolean compile) {
+        reoptimize(List.of(ex), compile);
+    }
+
+    public static void reoptimize(Executable ex) {
+        reoptimize(ex, false);
+    }
+
+    public enum TargetMode {
+        /**
+         * Target is marked as non-compilable, so jit never replaces the hook
+         */
+        NON_COMPILABLE,
+        /**
+         * Target is marked as non-compilable too, so jit never replaces the hook and never
+         * inlines the target into compiled callers. Patches that call the original go through
+         * a copy of the target method that stays compilable, so the original is compiled by jit.
+         * DYNAMIC originals run the code that jit installs for the copy from the next call,
+         * CURRENT and DIRECT originals are resolved when the hook is prepared
+         */
+        COMPILABLE
+    }
+
+    static final class Patch {
+        final Executable target;
+        final TrampolineAllocator.Slot slot;
+        final boolean compilable;
+        // Compilable copy of the target that is called by patches of its original, if any
+        MethodClones.Clone clone;
+        // Some DYNAMIC trampoline reads the original entry point from the slot of this patch
+        boolean publishes_original;
+        // Invoker or bridge that is used by this patch, released only after the patch is restored.
+        // If the patch is never restored, it is never reused
+        PooledSlot pooled;
+        HookStats stats;
+        // Hooker whose CURRENT entry point is stored in the slot and is checked
+        // against jit code by applyPatches, once for all patches applied together
+        Executable current_hooker;
+
+        // Filled in by applyPatch
+        long saved_entry_point;
+        int saved_flags;
+
+        Patch(Executable target, TrampolineAllocator.Slot slot, boolean compilable) {
+            this.target = target;
+            this.slot = slot;
+            this.compilable = compilable;
+        }
     }
 
     /**
-     * The declaring classes of target and hooker MUST be visible initialised
+     * The declaring class of target MUST be visible initialised
      */
-    private static void hook(Executable target, Executable hooker, long hooker_entry_point) {
-        //TODO: check signatures
+    private static Patch newPatch(Executable target, TargetMode mode, EntryPointType hooker_type) {
         Objects.requireNonNull(target);
+        Objects.requireNonNull(mode);
+        Objects.requireNonNull(hooker_type);
+        DebugStateHolder.ensure();
+        var slot = TrampolineAllocator.allocate(target.getDeclaringClass(),
+                hooker_type == EntryPointType.DYNAMIC);
+        return new Patch(target, slot, mode == TargetMode.COMPILABLE);
+    }
+
+    /**
+     * Points the trampoline of patch to hooker
+     * If signatures differ only by widening or boxing, an adapter is placed between them
+     * hooker_patch is a patch of hooker applied together with this one, or null
+     * The declaring class of hooker MUST be visible initialised
+     */
+    private static void bind(Patch patch, Executable hooker,
+                             EntryPointType hooker_type, Patch hooker_patch) {
         Objects.requireNonNull(hooker);
-        Arena scope = Arena.ofShared();
-        SunCleaner.systemCleaner().register(target.getDeclaringClass(), scope::close);
-        MemorySegment new_entry_point = NativeCodeBlob.makeCodeBlob(scope,
-                getTrampolineArray(getArtMethod(hooker), hooker_entry_point))[0];
-        try (var ignored = new ScopedSuspendAll(false)) {
-            ArtMethodUtils.makeExecutableNonCompilable(target);
-            ArtMethodUtils.changeExecutableFlags(target, kAccFastInterpreterToInterpreterInvoke, 0);
-            ArtMethodUtils.setExecutableEntryPoint(target, new_entry_point.nativeAddress());
+        if (Signatures.check(patch.target, hooker) == Signatures.Kind.ADAPT) {
+            if (hooker_patch != null) {
+                // The adapter calls the hooker through its entry point, which is our trampoline
+                throw new IllegalArgumentException(String.format(
+                        "%s cannot be adapted to %s, as it is patched too", hooker, patch.target));
+            }
+            var type = rawMethodTypeOf(patch.target).erase();
+            var adapter = InvokerPool.acquire(type);
+            adapter.setHandle(unreflect(hooker).asType(type));
+            patch.pooled = adapter;
+            hooker = adapter.method();
+            ensureDeclaringClassInitialized(hooker);
+        }
+        if (hooker_patch != null && hooker_patch.compilable) {
+            if (hooker_patch.clone == null) {
+                hooker_patch.clone = MethodClones.acquire(hooker_patch.target);
+            }
+            long art_method = hooker_patch.clone.artMethod();
+            patch.slot.set(art_method, hooker_type == EntryPointType.DYNAMIC ?
+                    hooker_patch.clone.entryPointCell() : getEntryPoint(patch, hooker, hooker_type));
+            return;
+        }
+        long art_method = getArtMethod(hooker);
+        if (hooker_type == EntryPointType.DYNAMIC) {
+            long cell;
+            if (hooker_patch != null) {
+                // The entry point of hooker will be our trampoline
+                hooker_patch.publishes_original = true;
+                cell = hooker_patch.slot.originalCell();
+            } else {
+                cell = art_method + ART_ENTRY_POINT_OFFSET;
+            }
+            patch.slot.set(art_method, cell);
+        } else {
+            patch.slot.set(art_method, getEntryPoint(patch, hooker, hooker_type));
+        }
+    }
+
+    /**
+     * Starting with Android 14, jit code is reclaimed only after art itself replaces
+     * an entry point through instrumentation, so our trampolines may jump to it
+     */
+    static boolean canFollowJitCode() {
+        return ART_INDEX >= A14;
+    }
+
+    // The entry point of the target before the patch is used by a trampoline or by the copy
+    private static boolean needsOriginal(Patch patch) {
+        return patch.publishes_original || patch.clone != null;
+    }
+
+    /**
+     * MUST be called inside ScopedSuspendAll
+     */
+    static void applyPatch(Patch patch, long observed, long original, long direct) {
+        var target = patch.target;
+        patch.saved_flags = ArtMethodUtils.getExecutableFlags(target);
+        patch.saved_entry_point = ArtMethodUtils.getExecutableEntryPoint(target);
+        if (needsOriginal(patch)) {
+            // The entry point was changed after it was checked
+            if (patch.saved_entry_point != observed) {
+                original = canFollowJitCode() ? patch.saved_entry_point : direct;
+            }
+            if (patch.publishes_original) {
+                patch.slot.setOriginal(original);
+            }
+            if (patch.clone != null) {
+                patch.clone.copy(original);
+            }
+        }
+        ArtMethodUtils.makeExecutableNonCompilable(target);
+        ArtMethodUtils.changeExecutableFlags(target, kAccFastInterpreterToInterpreterInvoke, 0);
+        ArtMethodUtils.setExecutableEntryPoint(target, patch.slot.code());
+    }
+
+    static long applyPatches(Patch... patches) {
+        return applyPatches(null, patches);
+    }
+
+    /**
+     * If threads is not null, only these threads are suspended instead of all.
+     * Nothing inside the suspend window throws, so if this method throws,
+     * none of the patches is applied and the caller may release them
+     *
+     * @return time the threads were held suspended
+     */
+    static long applyPatches(Thread[] threads, Patch... patches) {
+        ScopedSuspendAll.ensureNotHeld();
+        if (patches.length == 0) {
+            return 0;
+        }
+        // Original entry points are checked outside of SuspendAll, as it requires allocations.
+        // The maps are read once for all patches
+        var maps = canFollowJitCode() ? null : MMapSnapshot.current();
+        long[] observed = new long[patches.length];
+        long[] originals = new long[patches.length];
+        long[] directs = new long[patches.length];
+        for (int i = 0; i < patches.length; i++) {
+            var patch = patches[i];
+            if (patch.current_hooker != null) {
+                // The slot is not used by anyone until the patch is applied
+                patch.slot.setEntryPoint(getEntryPoint(maps,
+                        patch.current_hooker, patch.slot.entryPoint()));
+            }
+            if (needsOriginal(patch)) {
+                observed[i] = ArtMethodUtils.getExecutableEntryPoint(patch.target);
+                originals[i] = getEntryPoint(maps, patch.target, observed[i]);
+                directs[i] = getDirectEntryPoint(patch.target);
+            }
+        }
+        if (threads == null) {
+            var scope = new ScopedSuspendAll("Hook", false);
+            try (scope) {
+                for (int i = 0; i < patches.length; i++) {
+                    applyPatch(patches[i], observed[i], originals[i], directs[i]);
+                }
+            }
+            return scope.holdNanos();
+        }
+        var scope = new ScopedSuspendThreads("Hook", threads);
+        try (scope) {
+            for (int i = 0; i < patches.length; i++) {
+                applyPatch(patches[i], observed[i], originals[i], directs[i]);
+            }
+        }
+        return scope.holdNanos();
+    }
+
+    private static long getRestoreEntryPoint(MMapSnapshot maps, Patch patch) {
+        // Jit code that is not referenced by the entry point may already be collected
+        return _Utils.isJitCode(maps, patch.saved_entry_point) ?
+                getDirectEntryPoint(patch.target) : patch.saved_entry_point;
+    }
+
+    /**
+     * MUST be called inside ScopedSuspendAll
+     *
+     * @return false if someone else has already replaced our entry point, then nothing is restored
+     */
+    private static boolean restorePatch(Patch patch, long entry_point) {
+        var target = patch.target;
+        if (ArtMethodUtils.getExecutableEntryPoint(target) != patch.slot.code()) {
+            return false;
+        }
+        int flags = ArtMethodUtils.getExecutableFlags(target);
+        int saved = patch.saved_flags;
+        ArtMethodUtils.changeExecutableFlags(target, flags & ~saved, saved & ~flags);
+        ArtMethodUtils.setExecutableEntryPoint(target, entry_point);
+        return true;
+    }
+
+    /**
+     * Frees the trampoline of a patch that is not applied or is already restored
+     * and releases everything it uses
+     */
+    static void releasePatch(Patch patch) {
+        patch.slot.free();
+        if (patch.pooled != null) {
+            patch.pooled.release();
+        }
+        if (patch.clone != null) {
+            patch.clone.release();
+        }
+        if (patch.stats != null) {
+            HookStats.unregister(patch.stats);
+        }
+    }
+
+    static void releasePatches(Patch... patches) {
+        for (var patch : patches) {
+            releasePatch(patch);
+        }
+    }
+
+    static void restorePatches(Patch... patches) {
+        ScopedSuspendAll.ensureNotHeld();
+        if (patches.length == 0) {
+            return;
+        }
+        var maps = MMapSnapshot.current();
+        long[] entry_points = new long[patches.length];
+        for (int i = 0; i < patches.length; i++) {
+            entry_points[i] = getRestoreEntryPoint(maps, patches[i]);
+        }
+        boolean[] restored = new boolean[patches.length];
+        // Restore in reverse order so that a target patched twice gets its original state
+        try (var ignored = new ScopedSuspendAll("Unhook", false)) {
+            for (int i = patches.length - 1; i >= 0; i--) {
+                restored[i] = restorePatch(patches[i], entry_points[i]);
+            }
+        }
+        for (int i = 0; i < patches.length; i++) {
+            // A patch that was not restored is leaked on purpose: whoever replaced our entry
+            // point, for example a backup hook with a CURRENT target, may still jump to our
+            // trampoline, so the slot and everything it calls must never be reused
+            if (restored[i]) {
+                releasePatch(patches[i]);
+            }
         }
     }
 
     public enum EntryPointType {
         DIRECT,
-        // TODO: What if the code is in jit-cache?
-        CURRENT
-        // TODO: DYNAMIC
+        /**
+         * Before Android 14, jit code is replaced by DIRECT, as it can be
+         * collected once it is referenced only by our trampolines
+         */
+        CURRENT,
+        /**
+         * The trampoline loads the entry point of the method on every call,
+         * so it always runs the code that is currently installed.
+         * If the method is patched by the same call, its entry point before the patch is used
+         */
+        DYNAMIC
     }
 
-    private static long getEntryPoint(Executable ex, EntryPointType type) {
-        return type == EntryPointType.DIRECT ?
-                (Modifier.isNative(ex.getModifiers()) ?
-                        EntryPoints.getGenericJniTrampoline() :
-                        EntryPoints.getToInterpreterBridge()) :
-                ArtMethodUtils.getExecutableEntryPoint(ex);
+    private static final long ART_ENTRY_POINT_OFFSET = ARTMETHOD_LAYOUT.byteOffset(
+            groupElement("ptr_sized_fields_"), groupElement("entry_point_from_quick_compiled_code_"));
+
+    static long getDirectEntryPoint(Executable ex) {
+        return Modifier.isNative(ex.getModifiers()) ?
+                EntryPoints.getGenericJniTrampoline() :
+                EntryPoints.getToInterpreterBridge();
     }
 
     /**
-     * target -> hooker
-     * hooker is unchanged
+     * @param maps null if jit code can be followed
      */
-    public static void hook(Executable target, Executable hooker, EntryPointType hooker_type) {
+    private static long getEntryPoint(MMapSnapshot maps, Executable ex, long entry_point) {
+        if (maps != null && _Utils.isJitCode(maps, entry_point)) {
+            return getDirectEntryPoint(ex);
+        }
+        return entry_point;
+    }
+
+    /**
+     * DYNAMIC entry point is resolved as CURRENT.
+     * CURRENT jit code is replaced by DIRECT later, in applyPatches
+     */
+    private static long getEntryPoint(Patch patch, Executable ex, EntryPointType type) {
+        if (type == EntryPointType.DIRECT) {
+            return getDirectEntryPoint(ex);
+        }
+        if (!canFollowJitCode()) {
+            patch.current_hooker = ex;
+        }
+        return ArtMethodUtils.getExecutableEntryPoint(ex);
+    }
+
+    static Patch prepareHook(Executable target, TargetMode target_mode,
+                             Executable hooker, EntryPointType hooker_type) {
+        ensureDeclaringClassInitialized(target);
+        ensureDeclaringClassInitialized(hooker);
+        var patch = newPatch(target, target_mode, hooker_type);
+        bind(patch, hooker, hooker_type, null);
+        return patch;
+    }
+
+    static Patch[] prepareHookSwap(Executable first, EntryPointType first_type, TargetMode first_mode,
+                                   Executable second, EntryPointType second_type, TargetMode second_mode) {
+        ensureDeclaringClassInitialized(first);
+        ensureDeclaringClassInitialized(second);
+        var first_patch = newPatch(first, first_mode, second_type);
+        var second_patch = newPatch(second, second_mode, first_type);
+        bind(first_patch, second, second_type, second_patch);
+        bind(second_patch, first, first_type, first_patch);
+        return new Patch[]{first_patch, second_patch};
+    }
+
+    static Patch[] prepareHookBackup(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                     Executable hooker, EntryPointType hooker_type,
+                                     Executable backup) {
         ensureDeclaringClassInitialized(target);
         ensureDeclaringClassInitialized(hooker);
-        hook(target, hooker, getEntryPoint(hooker, hooker_type));
+        ensureDeclaringClassInitialized(backup);
+        var backup_patch = newPatch(backup, TargetMode.NON_COMPILABLE, target_type);
+        var target_patch = newPatch(target, target_mode, hooker_type);
+        bind(backup_patch, target, target_type, target_patch);
+        bind(target_patch, hooker, hooker_type, null);
+        return new Patch[]{backup_patch, target_patch};
+    }
+
+    /**
+     * target -> hooker
+     * hooker is unchanged
+     */
+    public static HookHandle hook(Executable target, TargetMode target_mode,
+                                  Executable hooker, EntryPointType hooker_type) {
+        return HookHandle.apply(prepareHook(target, target_mode, hooker, hooker_type));
+    }
+
+    /**
+     * target -> hooker
+     * hooker is unchanged
+     */
+    public static HookHandle hook(Executable target, Executable hooker, EntryPointType hooker_type) {
+        return hook(target, TargetMode.NON_COMPILABLE, hooker, hooker_type);
     }
 
     /**
      * first -> second
      * second -> first
      */
-    public static void hookSwap(Executable first, EntryPointType first_type,
-                                Executable second, EntryPointType second_type) {
-        ensureDeclaringClassInitialized(first);
-        ensureDeclaringClassInitialized(second);
-        long old_first_entry_point = getEntryPoint(first, first_type);
-        hook(first, second, getEntryPoint(second, second_type));
-        hook(second, first, old_first_entry_point);
+    public static HookHandle hookSwap(Executable first, EntryPointType first_type,
+                                      Executable second, EntryPointType second_type,
+                                      TargetMode mode) {
+        return HookHandle.apply(prepareHookSwap(first, first_type, mode, second, second_type, mode));
+    }
+
+    /**
+     * first -> second
+     * second -> first
+     */
+    public static HookHandle hookSwap(Executable first, EntryPointType first_type,
+                                      Executable second, EntryPointType second_type) {
+        return hookSwap(first, first_type, second, second_type, TargetMode.NON_COMPILABLE);
     }
 
     /**
@@ -204,91 +511,190 @@ public class Hooks {
      * backup -> target
      * hooker is unchanged
      */
-    public static void hookBackup(Executable target, EntryPointType target_type,
-                                  Executable hooker, EntryPointType hooker_type,
-                                  Executable backup) {
-        ensureDeclaringClassInitialized(target);
-        ensureDeclaringClassInitialized(hooker);
-        ensureDeclaringClassInitialized(backup);
-        hook(backup, target, getEntryPoint(target, target_type));
-        hook(target, hooker, getEntryPoint(hooker, hooker_type));
+    public static HookHandle hookBackup(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                        Executable hooker, EntryPointType hooker_type,
+                                        Executable backup) {
+        return HookHandle.apply(prepareHookBackup(target, target_type,
+                target_mode, hooker, hooker_type, backup));
     }
 
-    private static final String INVOKER_NAME = Hooks.class.getName() + "$$$Invoker";
-    private static final String METHOD_NAME = "invoke";
-    private static final String FIELD_NAME = "handle";
+    /**
+     * target -> hooker
+     * backup -> target
+     * hooker is unchanged
+     */
+    public static HookHandle hookBackup(Executable target, EntryPointType target_type,
+                                        Executable hooker, EntryPointType hooker_type,
+                                        Executable backup) {
+        return hookBackup(target, target_type, TargetMode.NON_COMPILABLE, hooker, hooker_type, backup);
+    }
 
-    private static byte[] generateInvoker(MethodType type) {
-        ProtoId proto = ProtoId.of(type);
+    /**
+     * HookTransformer hooks installed while stats are enabled count their calls,
+     * exceptions and total call time, which includes the original method if it is called.
+     * Disabling stats does not affect already installed hooks
+     */
+    public static void setStatsEnabled(boolean enabled) {
+        HookStats.setEnabled(enabled);
+    }
 
-        TypeId mh_id = TypeId.of(MethodHandle.class);
-        TypeId obj_id = TypeId.OBJECT;
+    public static boolean isStatsEnabled() {
+        return HookStats.isEnabled();
+    }
 
-        ProtoId mh_proto = ProtoId.of(obj_id, obj_id.array());
-        MethodId mh_method = MethodId.of(mh_id, "invokeExact", mh_proto);
+    /**
+     * @return stats of all installed instrumented hooks
+     */
+    public static List<HookStats.Snapshot> stats() {
+        return HookStats.snapshots();
+    }
 
-        TypeId invoker_id = TypeId.ofName(INVOKER_NAME);
-        FieldId field_id = FieldId.of(invoker_id, FIELD_NAME, mh_id);
-        MethodId method_id = MethodId.of(invoker_id, METHOD_NAME, proto);
+    private static InvokerPool.Slot initInvoker(MethodType type, HookTransformer transformer) {
+        var erased = type.erase(); // TODO: maybe use basic type?
+        var invoker = InvokerPool.acquire(erased);
+        try {
+            var backup_handle = MethodHandlesImpl.reinterptetHandle(unreflect(invoker.method()), type);
+            var impl = new HookTransformerImpl(backup_handle, transformer);
+            invoker.setHandle(Transformers.makeTransformer(erased, impl));
+        } catch (Throwable th) {
+            invoker.release();
+            throw th;
+        }
+        return invoker;
+    }
 
-        int params = proto.countInputRegisters();
-        var ret_type = proto.getReturnType().getShorty();
+    static Patch[] prepareHook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                               HookTransformer hooker, EntryPointType hooker_type) {
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(hooker);
 
-        ClassDef invoker_def = ClassBuilder.build(invoker_id, cb -> cb
-                .withSuperClass(obj_id)
-                .withFlags(ACC_PUBLIC | ACC_FINAL)
-                .withField(fb -> fb
-                        .of(field_id)
-                        .withFlags(ACC_PRIVATE | ACC_STATIC | ACC_FINAL)
-                )
-                .withMethod(mb -> mb
-                        .of(method_id)
-                        .withFlags(ACC_PUBLIC | ACC_STATIC)
-                        .withCode(/* wide return */ 2, ib -> {
-                            ib.sop(GET_OBJECT, ib.v(1), field_id);
-                            ib.invoke_polymorphic_range(mh_method, proto,
-                                    params + /* handle */ 1, ib.v(1));
-                            ib.move_result_shorty(ret_type, ib.l(0));
-                            ib.return_shorty(ret_type, ib.l(0));
-                        })
-                )
-        );
+        HookStats stats = null;
+        InvokerPool.Slot invoker = null;
+        Patch[] patches;
+        try {
+            if (HookStats.isEnabled()) {
+                stats = HookStats.register(target);
+                hooker = stats.instrument(hooker);
+            }
+            invoker = initInvoker(rawMethodTypeOf(target), hooker);
+            patches = prepareHookSwap(target, target_type, target_mode,
+                    invoker.method(), hooker_type, TargetMode.NON_COMPILABLE);
+        } catch (Throwable th) {
+            if (invoker != null) {
+                invoker.release();
+            }
+            if (stats != null) {
+                HookStats.unregister(stats);
+            }
+            throw th;
+        }
+        patches[1].pooled = invoker;
+        patches[1].stats = stats;
+        return patches;
+    }
 
-        return DexIO.write(Dex.of(invoker_def));
+    /**
+     * target -> hooker
+     * original (parameter of transformer) -> target
+     */
+    public static HookHandle hook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                  HookTransformer hooker, EntryPointType hooker_type) {
+        return HookHandle.apply(prepareHook(target, target_type, target_mode, hooker, hooker_type));
     }
 
-    private static final WeakReferenceCache<MethodType, byte[]>
-            invokers_cache = new WeakReferenceCache<>();
+    /**
+     * target -> hooker
+     * original (parameter of transformer) -> target
+     */
+    public static HookHandle hook(Executable target, EntryPointType target_type,
+                                  HookTransformer hooker, EntryPointType hooker_type) {
+        return hook(target, target_type, TargetMode.NON_COMPILABLE, hooker, hooker_type);
+    }
 
-    private static Class<?> loadInvoker(MethodType type) {
-        ClassLoader loader = Utils.newEmptyClassLoader(Object.class.getClassLoader());
-        var dexfile = DexFileUtils.openDexFile(invokers_cache.get(type, Hooks::generateInvoker));
-        return DexFileUtils.loadClass(dexfile, INVOKER_NAME, loader);
+    static <T> Patch[] prepareHook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                   Class<T> callback_type, Function<MethodHandle, T> callback,
+                                   EntryPointType hooker_type) {
+        Objects.requireNonNull(target);
+        Objects.requireNonNull(callback_type);
+        Objects.requireNonNull(callback);
+
+        var type = rawMethodTypeOf(target);
+        var bridge = TypedBridge.acquire(type, callback_type);
+        Patch[] patches;
+        try {
+            var original = MethodHandlesImpl.reinterptetHandle(unreflect(bridge.backup()), type);
+            bridge.setCallback(callback_type.cast(Objects.requireNonNull(callback.apply(original))));
+            patches = prepareHookBackup(target, target_type, target_mode,
+                    bridge.hook(), hooker_type, bridge.backup());
+        } catch (Throwable th) {
+            bridge.release();
+            throw th;
+        }
+        patches[0].pooled = bridge;
+        return patches;
     }
 
-    private static Method initInvoker(MethodType type, HookTransformer transformer) {
-        var erased = type.erase(); // TODO: maybe use basic type?
-        var invoker_class = loadInvoker(erased);
-        var hooker_method = getDeclaredMethod(invoker_class, METHOD_NAME, InvokeAccess.ptypes(erased));
-        var backup_handle = MethodHandlesImpl.reinterptetHandle(unreflect(hooker_method), type);
-        var impl = new HookTransformerImpl(backup_handle, transformer);
-        var handle = Transformers.makeTransformer(erased, impl);
-        var handle_field = getDeclaredField(invoker_class, FIELD_NAME);
-        AndroidUnsafe.putObject(invoker_class, fieldOffset(handle_field), handle);
-        return hooker_method;
+    /**
+     * target -> callback
+     * original (parameter of callback factory) -> target
+     * callback_type is an interface with a single abstract method, whose parameters
+     * are the parameters of target (with receiver, if any) and return type is assignable to that of target
+     */
+    public static <T> HookHandle hook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                      Class<T> callback_type, Function<MethodHandle, T> callback,
+                                      EntryPointType hooker_type) {
+        return HookHandle.apply(prepareHook(target, target_type,
+                target_mode, callback_type, callback, hooker_type));
     }
 
     /**
-     * target -> hooker
-     * original (parameter of transformer) -> target
+     * target -> callback
+     * original (parameter of callback factory) -> target
      */
-    public static void hook(Executable target, EntryPointType target_type,
-                            HookTransformer hooker, EntryPointType hooker_type) {
+    public static <T> HookHandle hook(Executable target, EntryPointType target_type,
+                                      Class<T> callback_type, Function<MethodHandle, T> callback,
+                                      EntryPointType hooker_type) {
+        return hook(target, target_type, TargetMode.NON_COMPILABLE, callback_type, callback, hooker_type);
+    }
+
+    static Patch[] prepareHook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                               BeforeHook before, AfterHook after, EntryPointType hooker_type) {
         Objects.requireNonNull(target);
-        Objects.requireNonNull(hooker);
+        if (before == null && after == null) {
+            throw new IllegalArgumentException("Both before and after are null");
+        }
+
+        var type = rawMethodTypeOf(target);
+        var bridge = AdviceBridge.acquire(type);
+        Patch[] patches;
+        try {
+            bridge.setAdvice(new Advice(target, type.parameterCount(), before, after));
+            patches = prepareHookBackup(target, target_type, target_mode,
+                    bridge.hook(), hooker_type, bridge.backup());
+        } catch (Throwable th) {
+            bridge.release();
+            throw th;
+        }
+        patches[0].pooled = bridge;
+        return patches;
+    }
+
+    /**
+     * target -> before, original, after
+     * before or after may be null
+     */
+    public static HookHandle hook(Executable target, EntryPointType target_type, TargetMode target_mode,
+                                  BeforeHook before, AfterHook after, EntryPointType hooker_type) {
+        return HookHandle.apply(prepareHook(target, target_type,
+                target_mode, before, after, hooker_type));
+    }
 
-        var invoker = initInvoker(rawMethodTypeOf(target), hooker);
-        SunCleaner.systemCleaner().register(target.getDeclaringClass(), () -> Utils.reachabilityFence(invoker));
-        hookSwap(target, target_type, invoker, hooker_type);
+    /**
+     * target -> before, original, after
+     * before or after may be null
+     */
+    public static HookHandle hook(Executable target, EntryPointType target_type,
+                                  BeforeHook before, AfterHook after, EntryPointType hooker_type) {
+        return hook(target, target_type, TargetMode.NON_COMPILABLE, before, after, hooker_type);
     }
 }
@@ -0,0 +1,204 @@
+package com.v7878.vmtools;
+
+import static com.v7878.dex.DexConstants.ACC_FINAL;
+import static com.v7878.dex.DexConstants.ACC_PRIVATE;
+import static com.v7878.dex.DexConstants.ACC_PUBLIC;
+import static com.v7878.dex.DexConstants.ACC_STATIC;
+import static com.v7878.dex.builder.CodeBuilder.Op.GET_OBJECT;
+import static com.v7878.unsafe.Reflection.fieldOffset;
+import static com.v7878.unsafe.Reflection.getDeclaredField;
+import static com.v7878.unsafe.Reflection.getDeclaredMethod;
+
+import com.v7878.dex.DexIO;
+import com.v7878.dex.builder.ClassBuilder;
+import com.v7878.dex.immutable.ClassDef;
+import com.v7878.dex.immutable.Dex;
+import com.v7878.dex.immutable.FieldId;
+import com.v7878.dex.immutable.MethodId;
+import com.v7878.dex.immutable.ProtoId;
+import com.v7878.dex.immutable.TypeId;
+import com.v7878.unsafe.AndroidUnsafe;
+import com.v7878.unsafe.DexFileUtils;
+import com.v7878.unsafe.Utils;
+import com.v7878.unsafe.access.InvokeAccess;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares invoker classes between HookTransformer hooks.
+ * Every invoker class has SLOTS_PER_CLASS static methods of the same erased type,
+ * each of them calls its own static handle. Invoker classes for several types
+ * are generated into one dex file and loaded by one class loader.
+ */
+final class InvokerPool {
+    private InvokerPool() {
+    }
+
+    static final int SLOTS_PER_CLASS = 16;
+
+    private static final String INVOKER_NAME = Hooks.class.getName() + "$$$Invoker";
+    private static final String METHOD_NAME = "invoke";
+    private static final String FIELD_NAME = "handle";
+
+    private static final class Entry {
+        final Pool pool;
+        final Class<?> clazz;
+        final Method method;
+        final long handle_offset;
+        // Guarded by InvokerPool.class
+        int generation;
+        boolean acquired;
+
+        Entry(Pool pool, Class<?> clazz, Method method, long handle_offset) {
+            this.pool = pool;
+            this.clazz = clazz;
+            this.method = method;
+            this.handle_offset = handle_offset;
+        }
+    }
+
+    /**
+     * One acquisition of an invoker method, it becomes stale once released
+     */
+    static final class Slot implements PooledSlot {
+        private final Entry entry;
+        private final int generation;
+
+        private Slot(Entry entry, int generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+
+        public Method method() {
+            return entry.method;
+        }
+
+        public void setHandle(MethodHandle handle) {
+            AndroidUnsafe.putObject(entry.clazz, entry.handle_offset, handle);
+        }
+
+        @Override
+        public void release() {
+            synchronized (InvokerPool.class) {
+                if (!entry.acquired || entry.generation != generation) {
+                    return;
+                }
+                entry.acquired = false;
+                entry.generation++;
+                setHandle(null);
+                entry.pool.free.push(entry);
+            }
+        }
+    }
+
+    private static final class Pool {
+        final MethodType type;
+        final ArrayDeque<Entry> free = new ArrayDeque<>();
+
+        Pool(MethodType type) {
+            this.type = type;
+        }
+    }
+
+    private static final Map<MethodType, Pool> pools = new HashMap<>();
+    private static int next_class_id;
+
+    private static ClassDef generateInvoker(String name, MethodType type) {
+        ProtoId proto = ProtoId.of(type);
+
+        TypeId mh_id = TypeId.of(MethodHandle.class);
+        TypeId obj_id = TypeId.OBJECT;
+
+        ProtoId mh_proto = ProtoId.of(obj_id, obj_id.array());
+        MethodId mh_method = MethodId.of(mh_id, "invokeExact", mh_proto);
+
+        TypeId invoker_id = TypeId.ofName(name);
+
+        int params = proto.countInputRegisters();
+        var ret_type = proto.getReturnType().getShorty();
+
+        return ClassBuilder.build(invoker_id, cb -> {
+            cb.withSuperClass(obj_id);
+            cb.withFlags(ACC_PUBLIC | ACC_FINAL);
+            for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+                FieldId field_id = FieldId.of(invoker_id, FIELD_NAME + i, mh_id);
+                MethodId method_id = MethodId.of(invoker_id, METHOD_NAME + i, proto);
+                cb.withField(fb -> fb
+                        .of(field_id)
+                        .withFlags(ACC_PRIVATE | ACC_STATIC)
+                );
+                cb.withMethod(mb -> mb
+                        .of(method_id)
+                        .withFlags(ACC_PUBLIC | ACC_STATIC)
+                        .withCode(/* wide return */ 2, ib -> {
+                            ib.sop(GET_OBJECT, ib.v(1), field_id);
+                            ib.invoke_polymorphic_range(mh_method, proto,
+                                    params + /* handle */ 1, ib.v(1));
+                            ib.move_result_shorty(ret_type, ib.l(0));
+                            ib.return_shorty(ret_type, ib.l(0));
+                        })
+                );
+            }
+        });
+    }
+
+    private static Pool poolOf(MethodType type) {
+        return pools.computeIfAbsent(type, Pool::new);
+    }
+
+    /**
+     * Makes sure that every type has a free slot for each of its occurrences,
+     * all missing invoker classes are loaded from a single dex file
+     */
+    static synchronized void reserve(List<MethodType> erased_types) {
+        Map<MethodType, Integer> needed = new HashMap<>();
+        for (var type : erased_types) {
+            needed.merge(type, 1, Integer::sum);
+        }
+        List<Pool> owners = new ArrayList<>();
+        List<ClassDef> defs = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (var entry : needed.entrySet()) {
+            var pool = poolOf(entry.getKey());
+            int missing = entry.getValue() - pool.free.size();
+            for (; missing > 0; missing -= SLOTS_PER_CLASS) {
+                String name = INVOKER_NAME + (next_class_id++);
+                owners.add(pool);
+                names.add(name);
+                defs.add(generateInvoker(name, pool.type));
+            }
+        }
+        if (defs.isEmpty()) {
+            return;
+        }
+        ClassLoader loader = Utils.newEmptyClassLoader(Object.class.getClassLoader());
+        var dexfile = DexFileUtils.openDexFile(DexIO.write(Dex.of(defs.toArray(new ClassDef[0]))));
+        for (int i = 0; i < defs.size(); i++) {
+            var pool = owners.get(i);
+            var clazz = DexFileUtils.loadClass(dexfile, names.get(i), loader);
+            var ptypes = InvokeAccess.ptypes(pool.type);
+            for (int j = 0; j < SLOTS_PER_CLASS; j++) {
+                var method = getDeclaredMethod(clazz, METHOD_NAME + j, ptypes);
+                long offset = fieldOffset(getDeclaredField(clazz, FIELD_NAME + j));
+                pool.free.push(new Entry(pool, clazz, method, offset));
+            }
+        }
+    }
+
+    static synchronized Slot acquire(MethodType erased_type) {
+        var pool = poolOf(erased_type);
+        if (pool.free.isEmpty()) {
+            reserve(List.of(erased_type));
+        }
+        var entry = pool.free.pop();
+        entry.acquired = true;
+        return new Slot(entry, entry.generation);
+    }
+}
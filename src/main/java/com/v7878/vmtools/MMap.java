@@ -2,9 +2,17 @@ package com.v7878.vmtools;
 
 import static com.v7878.unsafe.Utils.shouldNotHappen;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.stream.Stream;
 
 public class MMap {
@@ -34,7 +42,8 @@ public class MMap {
                 int devMajor = Integer.parseUnsignedInt(dev[0], 16);
                 int devMinor = Integer.parseUnsignedInt(dev[1], 16);
 
-                long inode = Long.parseUnsignedLong(parts[4], 16);
+                // Inode is decimal, unlike the other numbers
+                long inode = Long.parseUnsignedLong(parts[4]);
 
                 String path;
                 if (parts.length < 6) {
@@ -52,4 +61,321 @@ public class MMap {
             throw shouldNotHappen(e);
         }
     }
+
+    // Bits of Cursor.perms()
+    public static final int PERM_READ = 1;
+    public static final int PERM_WRITE = 1 << 1;
+    public static final int PERM_EXEC = 1 << 2;
+    public static final int PERM_SHARED = 1 << 3;
+
+    /**
+     * Current line of the maps file, valid only inside Visitor.visit.
+     * Fields are decoded in place, the path is converted to String only by path()
+     */
+    public static final class Cursor {
+        private byte[] buffer = new byte[64 * 1024];
+        private boolean busy;
+
+        private long start;
+        private long end;
+        private int perms;
+        private long offset;
+        private int dev_major;
+        private int dev_minor;
+        private long inode;
+        private int path_begin;
+        private int path_end;
+
+        private int pos;
+
+        private Cursor() {
+        }
+
+        public long start() {
+            return start;
+        }
+
+        public long end() {
+            return end;
+        }
+
+        /**
+         * Combination of PERM_* bits
+         */
+        public int perms() {
+            return perms;
+        }
+
+        public boolean isReadable() {
+            return (perms & PERM_READ) != 0;
+        }
+
+        public boolean isExecutable() {
+            return (perms & PERM_EXEC) != 0;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        public int devMajor() {
+            return dev_major;
+        }
+
+        public int devMinor() {
+            return dev_minor;
+        }
+
+        public long inode() {
+            return inode;
+        }
+
+        public boolean hasPath() {
+            return path_end > path_begin;
+        }
+
+        /**
+         * @return path of the mapping or null, allocates a new String
+         */
+        public String path() {
+            if (!hasPath()) {
+                return null;
+            }
+            return new String(buffer, path_begin, path_end - path_begin, StandardCharsets.UTF_8);
+        }
+
+        private static boolean isAscii(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) >= 0x80) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean regionMatches(int from, String value) {
+            if (from < path_begin || from + value.length() > path_end) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                if (buffer[from + i] != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean pathEquals(String value) {
+            if (!isAscii(value)) {
+                return value.equals(path());
+            }
+            return path_end - path_begin == value.length() && regionMatches(path_begin, value);
+        }
+
+        public boolean pathStartsWith(String prefix) {
+            if (!isAscii(prefix)) {
+                var path = path();
+                return path != null && path.startsWith(prefix);
+            }
+            return regionMatches(path_begin, prefix);
+        }
+
+        public boolean pathEndsWith(String suffix) {
+            if (!isAscii(suffix)) {
+                var path = path();
+                return path != null && path.endsWith(suffix);
+            }
+            return regionMatches(path_end - suffix.length(), suffix);
+        }
+
+        public boolean pathContains(String value) {
+            if (!isAscii(value)) {
+                var path = path();
+                return path != null && path.contains(value);
+            }
+            for (int i = path_begin; i + value.length() <= path_end; i++) {
+                if (regionMatches(i, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private long hex(char terminator) {
+            long value = 0;
+            byte[] tmp = buffer;
+            int i = pos;
+            for (; tmp[i] != terminator; i++) {
+                int digit = Character.digit(tmp[i], 16);
+                if (digit < 0) {
+                    throw new IllegalStateException("Unexpected maps line");
+                }
+                value = (value << 4) | digit;
+            }
+            pos = i + 1;
+            return value;
+        }
+
+        // "start-end perms offset major:minor inode    path"
+        private void parse(int begin, int line_end) {
+            byte[] tmp = buffer;
+            pos = begin;
+            start = hex('-');
+            end = hex(' ');
+            int bits = 0;
+            if (tmp[pos] == 'r') bits |= PERM_READ;
+            if (tmp[pos + 1] == 'w') bits |= PERM_WRITE;
+            if (tmp[pos + 2] == 'x') bits |= PERM_EXEC;
+            if (tmp[pos + 3] == 's') bits |= PERM_SHARED;
+            perms = bits;
+            pos += 5;
+            offset = hex(' ');
+            dev_major = (int) hex(':');
+            dev_minor = (int) hex(' ');
+            int i = pos;
+            long value = 0;
+            for (; i < line_end && tmp[i] != ' '; i++) {
+                value = value * 10 + (tmp[i] - '0');
+            }
+            inode = value;
+            while (i < line_end && tmp[i] == ' ') {
+                i++;
+            }
+            int last = line_end;
+            while (last > i && tmp[last - 1] == ' ') {
+                last--;
+            }
+            path_begin = i;
+            path_end = last;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @return false to stop reading
+         */
+        boolean visit(Cursor cursor);
+    }
+
+    private static final ThreadLocal<Cursor> CURSOR = ThreadLocal.withInitial(Cursor::new);
+
+    private static int indexOf(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the maps file into a buffer that is reused by the current thread
+     * and calls visitor for every line, without allocations per line
+     */
+    public static void visit(String pid, Visitor visitor) {
+        var cursor = CURSOR.get();
+        if (cursor.busy) {
+            // Nested call from the visitor
+            cursor = new Cursor();
+        }
+        cursor.busy = true;
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open("/proc/" + pid + "/maps", OsConstants.O_RDONLY, 0);
+            int filled = 0;
+            int pos = 0;
+            boolean eof = false;
+            while (true) {
+                int newline = indexOf(cursor.buffer, pos, filled);
+                if (newline >= 0) {
+                    cursor.parse(pos, newline);
+                    pos = newline + 1;
+                    if (!visitor.visit(cursor)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (eof) {
+                    if (pos < filled) {
+                        cursor.parse(pos, filled);
+                        visitor.visit(cursor);
+                    }
+                    return;
+                }
+                System.arraycopy(cursor.buffer, pos, cursor.buffer, 0, filled - pos);
+                filled -= pos;
+                pos = 0;
+                if (filled == cursor.buffer.length) {
+                    cursor.buffer = Arrays.copyOf(cursor.buffer, filled * 2);
+                }
+                int count = Os.read(fd, cursor.buffer, filled, cursor.buffer.length - filled);
+                if (count <= 0) {
+                    eof = true;
+                } else {
+                    filled += count;
+                }
+            }
+        } catch (ErrnoException | InterruptedIOException e) {
+            throw shouldNotHappen(e);
+        } finally {
+            cursor.busy = false;
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps in primitive arrays, entry i is (start[i], end[i], perms[i], ...).
+     * Equal paths of adjacent entries share one String
+     */
+    public record Columns(int size, long[] start, long[] end, int[] perms,
+                          long[] offset, long[] inode, String[] path) {
+    }
+
+    public static Columns columns(String pid) {
+        class Builder implements Visitor {
+            int size;
+            long[] start = new long[256];
+            long[] end = new long[256];
+            int[] perms = new int[256];
+            long[] offset = new long[256];
+            long[] inode = new long[256];
+            String[] path = new String[256];
+
+            @Override
+            public boolean visit(Cursor cursor) {
+                if (size == start.length) {
+                    int length = size * 2;
+                    start = Arrays.copyOf(start, length);
+                    end = Arrays.copyOf(end, length);
+                    perms = Arrays.copyOf(perms, length);
+                    offset = Arrays.copyOf(offset, length);
+                    inode = Arrays.copyOf(inode, length);
+                    path = Arrays.copyOf(path, length);
+                }
+                start[size] = cursor.start();
+                end[size] = cursor.end();
+                perms[size] = cursor.perms();
+                offset[size] = cursor.offset();
+                inode[size] = cursor.inode();
+                String previous = size == 0 ? null : path[size - 1];
+                if (cursor.hasPath()) {
+                    path[size] = previous != null && cursor.pathEquals(previous) ?
+                            previous : cursor.path();
+                }
+                size++;
+                return true;
+            }
+        }
+        var builder = new Builder();
+        visit(pid, builder);
+        return new Columns(builder.size, builder.start, builder.end, builder.perms,
+                builder.offset, builder.inode, builder.path);
+    }
 }
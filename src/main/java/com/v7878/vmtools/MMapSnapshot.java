@@ -0,0 +1,246 @@
+package com.v7878.vmtools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Maps of a process parsed once into arrays sorted by address,
+ * lookups are binary searches and do not read the maps file again.
+ * Entries do not overlap, so an address belongs to at most one entry.
+ */
+public final class MMapSnapshot {
+    public record Range(long start, long end) {
+    }
+
+    private static volatile long generation;
+
+    /**
+     * Makes refresh of all snapshots re-parse the maps, even if their fingerprint matches
+     */
+    public static void invalidate() {
+        synchronized (MMapSnapshot.class) {
+            generation++;
+        }
+    }
+
+    // Number of entries and hash of their bounds and perms
+    private static final class Fingerprint implements MMap.Visitor {
+        int count;
+        long hash;
+
+        @Override
+        public boolean visit(MMap.Cursor cursor) {
+            add(cursor.start(), cursor.end(), cursor.perms());
+            return true;
+        }
+
+        void add(long start, long end, int perms) {
+            count++;
+            hash = (hash * 31 + start) * 31 + end * 7 + perms;
+        }
+    }
+
+    private final String pid;
+    private final long snapshot_generation;
+    private final int size;
+    private final long[] start;
+    private final long[] end;
+    private final int[] perms;
+    private final String[] path;
+    private final long hash;
+    // Indices of entries with a path, sorted by path and then by address
+    private final int[] by_path;
+
+    private MMapSnapshot(String pid, long snapshot_generation, MMap.Columns columns) {
+        this.pid = pid;
+        this.snapshot_generation = snapshot_generation;
+        int count = columns.size();
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        // The kernel already sorts entries, but do not rely on it
+        long[] starts = columns.start();
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(starts[a], starts[b]));
+        this.size = count;
+        this.start = new long[count];
+        this.end = new long[count];
+        this.perms = new int[count];
+        this.path = new String[count];
+        for (int i = 0; i < count; i++) {
+            int index = order[i];
+            start[i] = starts[index];
+            end[i] = columns.end()[index];
+            perms[i] = columns.perms()[index];
+            path[i] = columns.path()[index];
+        }
+        // Hash is computed in file order, the same as in refresh
+        var fingerprint = new Fingerprint();
+        for (int i = 0; i < count; i++) {
+            fingerprint.add(starts[i], columns.end()[i], columns.perms()[i]);
+        }
+        this.hash = fingerprint.hash;
+        this.by_path = sortByPath();
+    }
+
+    private int[] sortByPath() {
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (path[i] != null) {
+                indices.add(i);
+            }
+        }
+        // Sort is stable, so entries with the same path stay sorted by address
+        indices.sort(Comparator.comparing(i -> path[i]));
+        int[] out = new int[indices.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = indices.get(i);
+        }
+        return out;
+    }
+
+    public static MMapSnapshot of(String pid) {
+        Objects.requireNonNull(pid);
+        return new MMapSnapshot(pid, generation, MMap.columns(pid));
+    }
+
+    public static MMapSnapshot current() {
+        return of("self");
+    }
+
+    /**
+     * The maps file is read again, but parsed into a new snapshot only if the number of
+     * entries, their bounds or perms, or the generation changed. Paths are not compared
+     *
+     * @return this snapshot if nothing changed
+     */
+    public MMapSnapshot refresh() {
+        long tmp = generation;
+        if (tmp == snapshot_generation) {
+            var fingerprint = new Fingerprint();
+            MMap.visit(pid, fingerprint);
+            if (fingerprint.count == size && fingerprint.hash == hash) {
+                return this;
+            }
+        }
+        return new MMapSnapshot(pid, tmp, MMap.columns(pid));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long start(int index) {
+        return start[Objects.checkIndex(index, size)];
+    }
+
+    public long end(int index) {
+        return end[Objects.checkIndex(index, size)];
+    }
+
+    /**
+     * Combination of MMap.PERM_* bits
+     */
+    public int perms(int index) {
+        return perms[Objects.checkIndex(index, size)];
+    }
+
+    public String path(int index) {
+        return path[Objects.checkIndex(index, size)];
+    }
+
+    // Index of the last entry with start <= address, or -1
+    private int floor(long address) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(start[mid], address) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return index of the entry that contains the address, or -1
+     */
+    public int find(long address) {
+        int index = floor(address);
+        if (index >= 0 && Long.compareUnsigned(address, end[index]) < 0) {
+            return index;
+        }
+        return -1;
+    }
+
+    public boolean isReadable(long address) {
+        int index = find(address);
+        return index >= 0 && (perms[index] & MMap.PERM_READ) != 0;
+    }
+
+    /**
+     * Readable parts of [begin, end), adjacent entries are merged
+     */
+    public List<Range> readableRanges(long begin, long end) {
+        List<Range> out = new ArrayList<>();
+        int index = Math.max(floor(begin), 0);
+        long range_start = 0;
+        long range_end = 0;
+        boolean open = false;
+        for (; index < size && Long.compareUnsigned(start[index], end) < 0; index++) {
+            if ((perms[index] & MMap.PERM_READ) == 0 ||
+                    Long.compareUnsigned(this.end[index], begin) <= 0) {
+                continue;
+            }
+            long from = Long.compareUnsigned(start[index], begin) > 0 ? start[index] : begin;
+            long to = Long.compareUnsigned(this.end[index], end) < 0 ? this.end[index] : end;
+            if (open && range_end == from) {
+                range_end = to;
+                continue;
+            }
+            if (open) {
+                out.add(new Range(range_start, range_end));
+            }
+            range_start = from;
+            range_end = to;
+            open = true;
+        }
+        if (open) {
+            out.add(new Range(range_start, range_end));
+        }
+        return out;
+    }
+
+    // First position in by_path with path >= name
+    private int lowerBound(String name) {
+        int low = 0;
+        int high = by_path.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (path[by_path[mid]].compareTo(name) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return indices of entries with exactly this path, sorted by address
+     */
+    public int[] byPath(String name) {
+        Objects.requireNonNull(name);
+        int from = lowerBound(name);
+        int to = from;
+        while (to < by_path.length && path[by_path[to]].equals(name)) {
+            to++;
+        }
+        return Arrays.copyOfRange(by_path, from, to);
+    }
+}
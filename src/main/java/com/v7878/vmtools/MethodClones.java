@@ -0,0 +1,214 @@
+package com.v7878.vmtools;
+
+import static com.v7878.dex.DexConstants.ACC_FINAL;
+import static com.v7878.dex.DexConstants.ACC_PRIVATE;
+import static com.v7878.dex.DexConstants.ACC_PUBLIC;
+import static com.v7878.dex.DexConstants.ACC_STATIC;
+import static com.v7878.foreign.MemoryLayout.PathElement.groupElement;
+import static com.v7878.unsafe.AndroidUnsafe.putIntN;
+import static com.v7878.unsafe.AndroidUnsafe.putShortN;
+import static com.v7878.unsafe.AndroidUnsafe.putWordN;
+import static com.v7878.unsafe.ArtMethodUtils.ARTMETHOD_LAYOUT;
+import static com.v7878.unsafe.ArtVersion.A12;
+import static com.v7878.unsafe.ArtVersion.ART_INDEX;
+import static com.v7878.unsafe.Reflection.fieldOffset;
+import static com.v7878.unsafe.Reflection.getArtMethod;
+import static com.v7878.unsafe.Reflection.getDeclaredField;
+import static com.v7878.unsafe.Reflection.getDeclaredMethod;
+
+import com.v7878.dex.DexIO;
+import com.v7878.dex.builder.ClassBuilder;
+import com.v7878.dex.immutable.ClassDef;
+import com.v7878.dex.immutable.Dex;
+import com.v7878.dex.immutable.FieldId;
+import com.v7878.dex.immutable.MethodId;
+import com.v7878.dex.immutable.ProtoId;
+import com.v7878.dex.immutable.TypeId;
+import com.v7878.unsafe.AndroidUnsafe;
+import com.v7878.unsafe.ArtMethodUtils;
+import com.v7878.unsafe.DexFileUtils;
+import com.v7878.unsafe.ExtraMemoryAccess;
+import com.v7878.unsafe.Utils;
+
+import java.lang.reflect.Executable;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies of ArtMethods of COMPILABLE targets. The target itself stays non-compilable,
+ * so jit never inlines it and never replaces its entry point, while the original code
+ * is called through the copy, which jit compiles as any other method.
+ * Copies are placed over methods of generated holder classes, so the gc visits
+ * their declaring classes. They are reused only for the same target, as some thread
+ * may still run the original through a released copy, so the memory of a copy
+ * always describes the same method and keeps its declaring class alive.
+ */
+final class MethodClones {
+    private MethodClones() {
+    }
+
+    static final int SLOTS_PER_CLASS = 16;
+
+    private static final String HOLDER_NAME = Hooks.class.getName() + "$$$Clone";
+    private static final String METHOD_NAME = "clone";
+    private static final String FIELD_NAME = "owner";
+
+    private static final long ARTMETHOD_SIZE = ARTMETHOD_LAYOUT.byteSize();
+    private static final long DECLARING_CLASS_OFFSET =
+            ARTMETHOD_LAYOUT.byteOffset(groupElement("declaring_class_"));
+    private static final long ENTRY_POINT_OFFSET = ARTMETHOD_LAYOUT.byteOffset(
+            groupElement("ptr_sized_fields_"), groupElement("entry_point_from_quick_compiled_code_"));
+    private static final long DATA_OFFSET = ARTMETHOD_LAYOUT.byteOffset(
+            groupElement("ptr_sized_fields_"), groupElement("data_"));
+    private static final long HOTNESS_OFFSET = ARTMETHOD_LAYOUT.byteOffset(groupElement("hotness_count_"));
+
+    private static final class Holder {
+        final Class<?> clazz;
+        final long art_method;
+        final long owner_offset;
+
+        Holder(Class<?> clazz, long art_method, long owner_offset) {
+            this.clazz = clazz;
+            this.art_method = art_method;
+            this.owner_offset = owner_offset;
+        }
+    }
+
+    private static final class Entry {
+        final Executable target;
+        final long target_art_method;
+        final Class<?> owner;
+        final boolean is_native;
+        final Holder holder;
+        // Guarded by MethodClones.class
+        int generation;
+        boolean acquired;
+
+        Entry(Executable target, Holder holder) {
+            this.target = target;
+            this.target_art_method = getArtMethod(target);
+            this.owner = target.getDeclaringClass();
+            this.is_native = Modifier.isNative(target.getModifiers());
+            this.holder = holder;
+        }
+    }
+
+    /**
+     * One acquisition of a copy, it becomes stale once released
+     */
+    static final class Clone implements PooledSlot {
+        private final Entry entry;
+        private final int generation;
+
+        private Clone(Entry entry, int generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+
+        public long artMethod() {
+            return entry.holder.art_method;
+        }
+
+        public long entryPointCell() {
+            return entry.holder.art_method + ENTRY_POINT_OFFSET;
+        }
+
+        /**
+         * Copies the target and sets the entry point of the copy, nothing is allocated.
+         * MUST be called inside ScopedSuspendAll, before the target is patched
+         */
+        public void copy(long entry_point) {
+            var holder = entry.holder;
+            long art_method = holder.art_method;
+            ExtraMemoryAccess.copyMemory(null, entry.target_art_method,
+                    null, art_method, ARTMETHOD_SIZE);
+            // The static field holds the same class, and the store marks the card of the holder,
+            // so the gc visits the copied root again. The root is rewritten with the
+            // reference that was just stored, as the copied one may be stale during a gc
+            AndroidUnsafe.putObject(holder.clazz, holder.owner_offset, entry.owner);
+            putIntN(art_method + DECLARING_CLASS_OFFSET,
+                    AndroidUnsafe.getInt(holder.clazz, holder.owner_offset));
+            putWordN(art_method + ENTRY_POINT_OFFSET, entry_point);
+            // Before Android 12, data_ of a method that is not native is its ProfilingInfo,
+            // which jit frees together with the code of the target, so the copy starts without it
+            if (ART_INDEX < A12 && !entry.is_native) {
+                putWordN(art_method + DATA_OFFSET, 0);
+                putShortN(art_method + HOTNESS_OFFSET, (short) 0);
+            }
+        }
+
+        @Override
+        public void release() {
+            synchronized (MethodClones.class) {
+                if (!entry.acquired || entry.generation != generation) {
+                    return;
+                }
+                entry.acquired = false;
+                entry.generation++;
+                free.computeIfAbsent(entry.target, unused -> new ArrayDeque<>()).push(entry);
+            }
+        }
+    }
+
+    private static final ArrayDeque<Holder> holders = new ArrayDeque<>();
+    private static final Map<Executable, ArrayDeque<Entry>> free = new HashMap<>();
+    private static int next_class_id;
+
+    private static ClassDef generateHolder(String name) {
+        TypeId holder_id = TypeId.ofName(name);
+        ProtoId proto = ProtoId.of(TypeId.V);
+        return ClassBuilder.build(holder_id, cb -> {
+            cb.withSuperClass(TypeId.OBJECT);
+            cb.withFlags(ACC_PUBLIC | ACC_FINAL);
+            for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+                FieldId field_id = FieldId.of(holder_id, FIELD_NAME + i, TypeId.OBJECT);
+                MethodId method_id = MethodId.of(holder_id, METHOD_NAME + i, proto);
+                cb.withField(fb -> fb
+                        .of(field_id)
+                        .withFlags(ACC_PRIVATE | ACC_STATIC)
+                );
+                cb.withMethod(mb -> mb
+                        .of(method_id)
+                        .withFlags(ACC_PRIVATE | ACC_STATIC)
+                        .withCode(0, ib -> ib.return_void())
+                );
+            }
+        });
+    }
+
+    private static void grow() {
+        String name = HOLDER_NAME + (next_class_id++);
+        ClassLoader loader = Utils.newEmptyClassLoader(Object.class.getClassLoader());
+        var dexfile = DexFileUtils.openDexFile(DexIO.write(Dex.of(generateHolder(name))));
+        var clazz = DexFileUtils.loadClass(dexfile, name, loader);
+        for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+            var method = getDeclaredMethod(clazz, METHOD_NAME + i);
+            // Art sets entry points of static methods when the class is initialized
+            Hooks.ensureDeclaringClassInitialized(method);
+            // Holder methods are never called, jit must not compile them before they are replaced
+            ArtMethodUtils.makeExecutableNonCompilable(method);
+            holders.push(new Holder(clazz, getArtMethod(method),
+                    fieldOffset(getDeclaredField(clazz, FIELD_NAME + i))));
+        }
+    }
+
+    /**
+     * The copy is filled in later by Clone.copy
+     */
+    static synchronized Clone acquire(Executable target) {
+        var entries = free.get(target);
+        Entry entry;
+        if (entries != null && !entries.isEmpty()) {
+            entry = entries.pop();
+        } else {
+            if (holders.isEmpty()) {
+                grow();
+            }
+            entry = new Entry(target, holders.pop());
+        }
+        entry.acquired = true;
+        return new Clone(entry, entry.generation);
+    }
+}
@@ -0,0 +1,222 @@
+package com.v7878.vmtools;
+
+import com.v7878.unsafe.Utils.FineClosable;
+import com.v7878.vmtools.Hooks.EntryPointType;
+import com.v7878.vmtools.Hooks.TargetMode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Samples calls of selected methods through advice hooks.
+ * One of every sample_rate outermost calls of profiled methods on a thread is measured
+ * together with all nested profiled calls. Every thread writes only to its own call tree,
+ * so recording takes no locks, while export reads the trees without stopping threads
+ * and may be slightly inconsistent. Trees of threads that have died are merged
+ * into a shared one, so their data is kept, but their states are not.
+ * Profiled methods are hooked in COMPILABLE mode, so their original code is still compiled.
+ */
+public final class MethodProfiler implements FineClosable {
+    private static final class Node {
+        final int method;
+        Node[] children = new Node[0];
+        long calls;
+        long total_nanos;
+        long self_nanos;
+
+        Node(int method) {
+            this.method = method;
+        }
+
+        Node child(int method) {
+            var tmp = children;
+            for (var node : tmp) {
+                if (node.method == method) {
+                    return node;
+                }
+            }
+            var node = new Node(method);
+            tmp = Arrays.copyOf(tmp, tmp.length + 1);
+            tmp[tmp.length - 1] = node;
+            children = tmp;
+            return node;
+        }
+    }
+
+    private static final class ThreadState {
+        final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+        final Node root = new Node(-1);
+        Node[] nodes = new Node[16];
+        long[] starts = new long[16];
+        long[] child_nanos = new long[16];
+        int depth;
+        long counter;
+        boolean sampled;
+
+        void ensureCapacity(int size) {
+            if (size > nodes.length) {
+                int length = Math.max(size, nodes.length * 2);
+                nodes = Arrays.copyOf(nodes, length);
+                starts = Arrays.copyOf(starts, length);
+                child_nanos = Arrays.copyOf(child_nanos, length);
+            }
+        }
+    }
+
+    private final String[] names;
+    private final int sample_rate;
+    private final Queue<ThreadState> states = new ConcurrentLinkedQueue<>();
+    // Merged trees of threads that have died, guarded by itself
+    private final Node retired = new Node(-1);
+    private final ThreadLocal<ThreadState> state = ThreadLocal.withInitial(() -> {
+        retireDead();
+        var tmp = new ThreadState();
+        states.add(tmp);
+        return tmp;
+    });
+    private HookHandle handle;
+
+    private MethodProfiler(String[] names, int sample_rate) {
+        this.names = names;
+        this.sample_rate = sample_rate;
+    }
+
+    private static String nameOf(Executable ex) {
+        String name = ex instanceof Constructor<?> ? "<init>" : ex.getName();
+        return ex.getDeclaringClass().getName() + "." + name;
+    }
+
+    /**
+     * Hooks all methods in a single ScopedSuspendAll
+     *
+     * @param sample_rate measure one of every sample_rate outermost calls
+     */
+    public static MethodProfiler start(Executable[] methods, int sample_rate) {
+        if (sample_rate <= 0) {
+            throw new IllegalArgumentException("sample_rate must be positive: " + sample_rate);
+        }
+        String[] names = new String[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            names[i] = nameOf(methods[i]);
+        }
+        var profiler = new MethodProfiler(names, sample_rate);
+        var batch = new HookBatch();
+        for (int i = 0; i < methods.length; i++) {
+            final int id = i;
+            batch.hook(methods[i], EntryPointType.CURRENT, TargetMode.COMPILABLE,
+                    args -> profiler.enter(id), args -> profiler.exit(), EntryPointType.DYNAMIC);
+        }
+        profiler.handle = batch.commit().handle();
+        return profiler;
+    }
+
+    private void enter(int method) {
+        var st = state.get();
+        int depth = st.depth++;
+        if (depth == 0) {
+            st.sampled = ++st.counter % sample_rate == 0;
+        }
+        if (!st.sampled) {
+            return;
+        }
+        st.ensureCapacity(depth + 1);
+        var parent = depth == 0 ? st.root : st.nodes[depth - 1];
+        st.nodes[depth] = parent.child(method);
+        st.child_nanos[depth] = 0;
+        st.starts[depth] = System.nanoTime();
+    }
+
+    private void exit() {
+        long end = System.nanoTime();
+        var st = state.get();
+        int depth = --st.depth;
+        if (!st.sampled) {
+            return;
+        }
+        long total = end - st.starts[depth];
+        var node = st.nodes[depth];
+        node.calls++;
+        node.total_nanos += total;
+        node.self_nanos += total - st.child_nanos[depth];
+        if (depth > 0) {
+            st.child_nanos[depth - 1] += total;
+        }
+    }
+
+    private static void merge(Node from, Node to) {
+        for (var child : from.children) {
+            var node = to.child(child.method);
+            node.calls += child.calls;
+            node.total_nanos += child.total_nanos;
+            node.self_nanos += child.self_nanos;
+            merge(child, node);
+        }
+    }
+
+    // A thread that has died has finished writing its tree
+    private void retireDead() {
+        synchronized (retired) {
+            for (var st : states) {
+                var thread = st.thread.get();
+                if (thread == null || !thread.isAlive()) {
+                    states.remove(st);
+                    merge(st.root, retired);
+                }
+            }
+        }
+    }
+
+    private void collect(Node node, String prefix, Map<String, Long> out) {
+        for (var child : node.children) {
+            String path = prefix.isEmpty() ? names[child.method] : prefix + ";" + names[child.method];
+            out.merge(path, child.self_nanos, Long::sum);
+            collect(child, path, out);
+        }
+    }
+
+    /**
+     * Writes self time in nanoseconds of every sampled stack of profiled methods,
+     * merged over all threads, in collapsed stack format ("a;b;c 123")
+     */
+    public void writeCollapsed(Appendable out) {
+        Map<String, Long> stacks = new TreeMap<>();
+        retireDead();
+        // States are retired under the same lock, so none is counted twice or missed
+        synchronized (retired) {
+            collect(retired, "", stacks);
+            for (var st : states) {
+                collect(st.root, "", stacks);
+            }
+        }
+        try {
+            for (var entry : stacks.entrySet()) {
+                out.append(entry.getKey()).append(' ')
+                        .append(Long.toString(entry.getValue())).append('\n');
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String collapsedStacks() {
+        var out = new StringBuilder();
+        writeCollapsed(out);
+        return out.toString();
+    }
+
+    /**
+     * Restores all profiled methods, collected data stays available
+     */
+    @Override
+    public void close() {
+        handle.close();
+    }
+}
@@ -0,0 +1,95 @@
+package com.v7878.vmtools;
+
+import com.v7878.vmtools.HookBatch.Result;
+import com.v7878.vmtools.Hooks.Patch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers patches submitted from several threads within a short window
+ * and applies all of them in a single ScopedSuspendAll.
+ */
+final class PatchCoalescer {
+    private PatchCoalescer() {
+    }
+
+    private record Request(Patch[] patches, CompletableFuture<Result> future) {
+    }
+
+    private static final List<Request> pending = new ArrayList<>();
+    private static volatile long window_millis = 5;
+    private static boolean scheduled;
+
+    private static class Holder {
+        static final ScheduledExecutorService EXECUTOR =
+                Executors.newSingleThreadScheduledExecutor(task -> {
+                    var thread = new Thread(task, "VMTools-PatchCoalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    static void setWindow(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("window must not be negative: " + millis);
+        }
+        window_millis = millis;
+    }
+
+    static CompletableFuture<Result> submit(Patch[] patches) {
+        var future = new CompletableFuture<Result>();
+        synchronized (pending) {
+            pending.add(new Request(patches, future));
+            if (!scheduled) {
+                scheduled = true;
+                Holder.EXECUTOR.schedule(PatchCoalescer::flush, window_millis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return future;
+    }
+
+    private static void flush() {
+        Request[] requests;
+        synchronized (pending) {
+            requests = pending.toArray(new Request[0]);
+            pending.clear();
+            scheduled = false;
+        }
+        List<Patch> all = new ArrayList<>();
+        for (var request : requests) {
+            all.addAll(List.of(request.patches()));
+        }
+        long pause;
+        try {
+            pause = Hooks.applyPatches(all.toArray(new Patch[0]));
+        } catch (Throwable th) {
+            // Nothing is applied, so one bad batch must not fail the others
+            for (var request : requests) {
+                applySeparately(request);
+            }
+            return;
+        }
+        for (var request : requests) {
+            var patches = request.patches();
+            request.future().complete(new Result(patches.length, pause, new HookHandle(patches)));
+        }
+    }
+
+    private static void applySeparately(Request request) {
+        var patches = request.patches();
+        long pause;
+        try {
+            pause = Hooks.applyPatches(patches);
+        } catch (Throwable th) {
+            Hooks.releasePatches(patches);
+            request.future().completeExceptionally(th);
+            return;
+        }
+        request.future().complete(new Result(patches.length, pause, new HookHandle(patches)));
+    }
+}
@@ -0,0 +1,12 @@
+package com.v7878.vmtools;
+
+/**
+ * Methods of a shared generated class that are handed out to one hook at a time
+ */
+interface PooledSlot {
+    /**
+     * MUST be called only after the patches that reach these methods are restored.
+     * Releasing a stale acquisition does nothing
+     */
+    void release();
+}
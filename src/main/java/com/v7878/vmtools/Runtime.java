@@ -1,8 +1,11 @@
 package com.v7878.vmtools;
 
+import static com.v7878.unsafe.ArtModifiers.kAccCompileDontBother;
 import static com.v7878.unsafe.ArtVersion.A13;
 import static com.v7878.unsafe.ArtVersion.A14;
 import static com.v7878.unsafe.ArtVersion.ART_INDEX;
+import static com.v7878.unsafe.Reflection.getArtMethod;
+import static com.v7878.unsafe.Utils.shouldNotHappen;
 import static com.v7878.unsafe.foreign.BulkLinker.CallType.CRITICAL;
 import static com.v7878.unsafe.foreign.BulkLinker.MapType.INT;
 import static com.v7878.unsafe.foreign.BulkLinker.MapType.LONG_AS_WORD;
@@ -14,13 +17,28 @@ import com.v7878.foreign.Arena;
 import com.v7878.r8.annotations.DoNotOptimize;
 import com.v7878.r8.annotations.DoNotShrink;
 import com.v7878.r8.annotations.DoNotShrinkType;
+import com.v7878.unsafe.AndroidUnsafe;
+import com.v7878.unsafe.ArtMethodUtils;
 import com.v7878.unsafe.JNIUtils;
 import com.v7878.unsafe.foreign.BulkLinker;
 import com.v7878.unsafe.foreign.BulkLinker.CallSignature;
 import com.v7878.unsafe.foreign.BulkLinker.Conditions;
 import com.v7878.unsafe.foreign.BulkLinker.LibrarySymbol;
+import com.v7878.vmtools.EntryPoints.CodeRange;
+import com.v7878.vmtools.Hooks.DeoptimizeResult;
 
+import java.io.IOException;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public class Runtime {
     public enum DebugState {
@@ -70,8 +88,133 @@ public class Runtime {
     public static void DeoptimizeBootImage() {
         var instance = Native.INSTANCE;
         var runtime = JNIUtils.getRuntimePtr();
-        try (var ignored = new ScopedSuspendAll(false)) {
+        try (var ignored = new ScopedSuspendAll("DeoptimizeBootImage", false)) {
             instance.DeoptimizeBootImage(runtime);
         }
     }
+
+    // For example, /apex/com.android.art/javalib/arm64/boot.oat or boot-framework.oat
+    private static boolean isBootImagePath(String path) {
+        return path != null && path.endsWith(".oat") &&
+                path.startsWith("boot", path.lastIndexOf('/') + 1);
+    }
+
+    private static List<CodeRange> bootImageCode() {
+        try (var stream = MMap.maps("self")) {
+            return stream.filter(entry -> entry.perms().indexOf('x') >= 0 &&
+                            isBootImagePath(entry.path()))
+                    .map(entry -> new CodeRange(entry.start(), entry.end()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean contains(List<CodeRange> ranges, long address) {
+        for (var range : ranges) {
+            if (range.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deoptimizes only the given boot methods and the compiled boot image methods
+     * declared in the same classes, as they are the most likely to inline them.
+     * Callers from other classes cannot be found, so they have to be passed explicitly.
+     * Unlike DeoptimizeBootImage, the rest of the boot image keeps its compiled code
+     */
+    public static DeoptimizeResult deoptimizeBootMethods(Collection<? extends Executable> methods) {
+        var boot_loader = Object.class.getClassLoader();
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        for (var method : methods) {
+            var clazz = method.getDeclaringClass();
+            if (clazz.getClassLoader() != boot_loader) {
+                throw new IllegalArgumentException("Not a boot method: " + method);
+            }
+            classes.add(clazz);
+        }
+        var code = bootImageCode();
+        Set<Executable> out = new LinkedHashSet<>(methods);
+        List<Executable> candidates = new ArrayList<>();
+        for (var clazz : classes) {
+            candidates.addAll(List.of(clazz.getDeclaredMethods()));
+            candidates.addAll(List.of(clazz.getDeclaredConstructors()));
+        }
+        for (var candidate : candidates) {
+            if (contains(code, ArtMethodUtils.getExecutableEntryPoint(candidate))) {
+                out.add(candidate);
+            }
+        }
+        return Deoptimizer.deoptimize("DeoptimizeBootMethods", out);
+    }
+
+    /**
+     * Asks jit to compile the methods on their next call (Android 13+).
+     * Native, abstract and non-compilable methods are skipped
+     *
+     * @return number of requested methods, 0 before Android 13
+     */
+    public static int requestJitCompilation(Collection<? extends Executable> methods) {
+        // Starting with Android 13, the counter goes down and the method is compiled when it reaches zero
+        if (ART_INDEX < A13) {
+            return 0;
+        }
+        int count = 0;
+        for (var ex : methods) {
+            int modifiers = ex.getModifiers();
+            if (Modifier.isNative(modifiers) || Modifier.isAbstract(modifiers) ||
+                    (ArtMethodUtils.getExecutableFlags(ex) & kAccCompileDontBother) != 0) {
+                continue;
+            }
+            AndroidUnsafe.putShortN(getArtMethod(ex) + Deoptimizer.HOTNESS_OFFSET, (short) 1);
+            count++;
+        }
+        return count;
+    }
+
+    public static boolean isJitCompiled(Executable ex) {
+        return _Utils.isJitCode(ArtMethodUtils.getExecutableEntryPoint(ex));
+    }
+
+    /**
+     * @param reserved_bytes size of all jit cache mappings, code and data
+     * @param resident_bytes part of them that is backed by memory, roughly the used space
+     */
+    public record JitCodeCacheStats(long reserved_bytes, long resident_bytes) {
+    }
+
+    public static JitCodeCacheStats getJitCodeCacheStats() {
+        long reserved = 0;
+        long resident = 0;
+        boolean jit = false;
+        try (var lines = Files.lines(Paths.get("/proc/self/smaps"))) {
+            for (var line : (Iterable<String>) lines::iterator) {
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                if (line.charAt(space - 1) != ':') {
+                    // Header of a mapping, the same as the line of /proc/self/maps
+                    var parts = line.split(" +", 6);
+                    jit = parts.length == 6 && _Utils.isJitCachePath(parts[5].trim());
+                } else if (jit) {
+                    if (line.startsWith("Size:")) {
+                        reserved += parseKilobytes(line, space);
+                    } else if (line.startsWith("Rss:")) {
+                        resident += parseKilobytes(line, space);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw shouldNotHappen(e);
+        }
+        return new JitCodeCacheStats(reserved, resident);
+    }
+
+    // "Rss:                 123 kB"
+    private static long parseKilobytes(String line, int space) {
+        var value = line.substring(space).trim();
+        int end = value.indexOf(' ');
+        return Long.parseLong(end < 0 ? value : value.substring(0, end)) * 1024;
+    }
 }
@@ -0,0 +1,60 @@
+package com.v7878.vmtools;
+
+import static com.v7878.unsafe.foreign.BulkLinker.CallType.NATIVE_STATIC_OMIT_ENV;
+import static com.v7878.unsafe.foreign.BulkLinker.MapType.LONG_AS_WORD;
+import static com.v7878.unsafe.foreign.BulkLinker.MapType.VOID;
+import static com.v7878.unsafe.foreign.LibArt.ART;
+
+import com.v7878.foreign.Arena;
+import com.v7878.foreign.MemorySegment;
+import com.v7878.r8.annotations.DoNotOptimize;
+import com.v7878.r8.annotations.DoNotShrink;
+import com.v7878.r8.annotations.DoNotShrinkType;
+import com.v7878.unsafe.Utils.FineClosable;
+import com.v7878.unsafe.foreign.BulkLinker;
+import com.v7878.unsafe.foreign.BulkLinker.CallSignature;
+import com.v7878.unsafe.foreign.BulkLinker.LibrarySymbol;
+
+/**
+ * Stops the jit thread pool, compilation tasks that are already running are finished first.
+ * Methods are not compiled until close, but the code that is already compiled is still used
+ */
+public class ScopedJitSuspend implements FineClosable {
+    @DoNotShrinkType
+    @DoNotOptimize
+    private abstract static class Native {
+        @DoNotShrink
+        private static final Arena SCOPE = Arena.ofAuto();
+
+        // Waits for running compilation tasks, so the thread is moved to Native
+        // and does not block suspension of all threads meanwhile
+        @LibrarySymbol(name = "_ZN3art3jit16ScopedJitSuspendC2Ev")
+        @CallSignature(type = NATIVE_STATIC_OMIT_ENV, ret = VOID, args = {LONG_AS_WORD})
+        abstract void Suspend(long thiz);
+
+        @LibrarySymbol(name = "_ZN3art3jit16ScopedJitSuspendD2Ev")
+        @CallSignature(type = NATIVE_STATIC_OMIT_ENV, ret = VOID, args = {LONG_AS_WORD})
+        abstract void Resume(long thiz);
+
+        static final Native INSTANCE = BulkLinker.generateImpl(SCOPE, Native.class, ART);
+    }
+
+    // art::jit::ScopedJitSuspend contains only "bool was_on_"
+    private static final long NATIVE_SIZE = 8;
+
+    private final Arena arena;
+    private final MemorySegment thiz;
+
+    public ScopedJitSuspend() {
+        var instance = Native.INSTANCE;
+        this.arena = Arena.ofShared();
+        this.thiz = arena.allocate(NATIVE_SIZE);
+        instance.Suspend(thiz.nativeAddress());
+    }
+
+    @Override
+    public void close() {
+        Native.INSTANCE.Resume(thiz.nativeAddress());
+        arena.close();
+    }
+}
@@ -6,6 +6,8 @@ import static com.v7878.unsafe.foreign.BulkLinker.MapType.LONG_AS_WORD;
 import static com.v7878.unsafe.foreign.BulkLinker.MapType.VOID;
 import static com.v7878.unsafe.foreign.LibArt.ART;
 
+import android.util.Log;
+
 import com.v7878.foreign.Arena;
 import com.v7878.foreign.MemorySegment;
 import com.v7878.r8.annotations.DoNotOptimize;
@@ -16,6 +18,13 @@ import com.v7878.unsafe.foreign.BulkLinker;
 import com.v7878.unsafe.foreign.BulkLinker.CallSignature;
 import com.v7878.unsafe.foreign.BulkLinker.LibrarySymbol;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
 public class ScopedSuspendAll implements FineClosable {
     @DoNotShrinkType
     @DoNotOptimize
@@ -24,7 +33,12 @@ public class ScopedSuspendAll implements FineClosable {
         @DoNotShrink
         private static final Arena SCOPE = Arena.ofAuto();
 
-        static final MemorySegment CAUSE = SCOPE.allocateFrom("Hook");
+        // Causes are interned, as art keeps the pointer while threads are suspended
+        static final Map<String, MemorySegment> CAUSES = new ConcurrentHashMap<>();
+
+        static long cause(String cause) {
+            return CAUSES.computeIfAbsent(cause, SCOPE::allocateFrom).nativeAddress();
+        }
 
         @LibrarySymbol(name = "_ZN3art16ScopedSuspendAllC2EPKcb")
         @CallSignature(type = CRITICAL, ret = VOID, args = {LONG_AS_WORD, LONG_AS_WORD, BOOL})
@@ -37,12 +51,149 @@ public class ScopedSuspendAll implements FineClosable {
         static final Native INSTANCE = BulkLinker.generateImpl(SCOPE, Native.class, ART);
     }
 
+    /**
+     * One suspend window, times are measured with System.nanoTime
+     *
+     * @param caller first frame outside of this library, if any
+     */
+    public record Window(String cause, long start_nanos, long suspend_nanos,
+                         long hold_nanos, StackTraceElement caller) {
+    }
+
+    private static final int HISTORY_SIZE = 128;
+    private static final Window[] history = new Window[HISTORY_SIZE];
+    private static int history_count;
+    private static volatile Consumer<Window> listener;
+
+    /**
+     * The listener is called after threads are resumed, on the thread that suspended them.
+     * Exceptions thrown by the listener are logged and never reach the code that suspended threads
+     */
+    public static void setListener(Consumer<Window> value) {
+        listener = value;
+    }
+
+    /**
+     * @return last suspend windows, oldest first
+     */
+    public static List<Window> history() {
+        synchronized (history) {
+            int size = Math.min(history_count, HISTORY_SIZE);
+            List<Window> out = new ArrayList<>(size);
+            for (int i = history_count - size; i < history_count; i++) {
+                out.add(history[i % HISTORY_SIZE]);
+            }
+            return out;
+        }
+    }
+
+    static void record(Window window) {
+        synchronized (history) {
+            history[history_count % HISTORY_SIZE] = window;
+            history_count++;
+        }
+        var tmp = listener;
+        if (tmp != null) {
+            try {
+                tmp.accept(window);
+            } catch (Throwable th) {
+                // Patches are already applied, so the caller must not see the failure
+                Log.e("VMTools", "Suspend window listener failed", th);
+            }
+        }
+    }
+
+    private static final String PACKAGE_PREFIX = ScopedSuspendAll.class.getName()
+            .substring(0, ScopedSuspendAll.class.getName().lastIndexOf('.') + 1);
+
+    static StackTraceElement findCaller() {
+        var trace = new Throwable().getStackTrace();
+        for (var element : trace) {
+            if (!element.getClassName().startsWith(PACKAGE_PREFIX)) {
+                return element;
+            }
+        }
+        return trace.length > 2 ? trace[2] : null;
+    }
+
+    // Depth of nested scopes on the current thread
+    private static final ThreadLocal<int[]> DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+    private final int[] depth;
+    private final boolean nested;
+    private final String cause;
+    private final StackTraceElement caller;
+    private final long start;
+    private final long suspended;
+    private long hold_nanos;
+
+    /**
+     * Scopes are reentrant, nested scopes on the same thread do nothing.
+     * Nothing may be allocated while threads are suspended, so the window is recorded in close.
+     * Hooking is NOT supported inside a scope: Hooks, HookBatch, HookHandle.close,
+     * deoptimize and reoptimize throw IllegalStateException, as they load classes,
+     * allocate and read files before they suspend threads
+     */
+    public ScopedSuspendAll(String cause, boolean long_suspend) {
+        Objects.requireNonNull(cause);
+        this.depth = DEPTH.get();
+        if (depth[0] > 0) {
+            depth[0]++;
+            this.nested = true;
+            this.cause = cause;
+            this.caller = null;
+            this.start = 0;
+            this.suspended = 0;
+            return;
+        }
+        this.nested = false;
+        this.cause = cause;
+        this.caller = findCaller();
+        long cause_ptr = Native.cause(cause);
+        depth[0]++;
+        this.start = System.nanoTime();
+        Native.INSTANCE.SuspendAll(0, cause_ptr, long_suspend);
+        this.suspended = System.nanoTime();
+    }
+
     public ScopedSuspendAll(boolean long_suspend) {
-        Native.INSTANCE.SuspendAll(0, Native.CAUSE.nativeAddress(), long_suspend);
+        this("Hook", long_suspend);
+    }
+
+    /**
+     * @return true if the current thread holds threads suspended
+     */
+    public static boolean isHeld() {
+        return DEPTH.get()[0] > 0;
+    }
+
+    /**
+     * Nested hooking is rejected, not deferred to the outer scope
+     */
+    static void ensureNotHeld() {
+        if (isHeld()) {
+            throw new IllegalStateException(
+                    "Methods cannot be patched while the current thread holds threads suspended");
+        }
     }
 
     @Override
     public void close() {
+        depth[0]--;
+        if (nested) {
+            return;
+        }
+        long resumed = System.nanoTime();
         Native.INSTANCE.ResumeAll(0);
+        hold_nanos = resumed - suspended;
+        record(new Window(cause, start, suspended - start, hold_nanos, caller));
+    }
+
+    /**
+     * @return time from the moment all threads were suspended until they were resumed,
+     * valid after close. Nested scopes return 0, as the outermost scope holds the threads
+     */
+    public long holdNanos() {
+        return hold_nanos;
     }
 }
@@ -0,0 +1,95 @@
+package com.v7878.vmtools;
+
+import static com.v7878.ti.JVMTIConstants.JVMTI_ERROR_NONE;
+
+import com.v7878.ti.JVMTI;
+import com.v7878.unsafe.Utils.FineClosable;
+import com.v7878.vmtools.ScopedSuspendAll.Window;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Suspends only the given threads through JVMTI, other threads keep running.
+ * The current thread and threads that are not alive are skipped, threads that
+ * were already suspended by someone else stay suspended after close.
+ * Does nothing inside ScopedSuspendAll, as all threads are already suspended.
+ */
+public class ScopedSuspendThreads implements FineClosable {
+    private static final Thread[] EMPTY = new Thread[0];
+
+    private final boolean nested;
+    private final String cause;
+    private final StackTraceElement caller;
+    private final Thread[] suspended_threads;
+    private final long start;
+    private final long suspended;
+    private long hold_nanos;
+
+    public ScopedSuspendThreads(String cause, Thread... threads) {
+        Objects.requireNonNull(cause);
+        Objects.requireNonNull(threads);
+        this.cause = cause;
+        if (ScopedSuspendAll.isHeld()) {
+            this.nested = true;
+            this.caller = null;
+            this.suspended_threads = EMPTY;
+            this.start = 0;
+            this.suspended = 0;
+            return;
+        }
+        this.nested = false;
+        this.caller = ScopedSuspendAll.findCaller();
+        var current = Thread.currentThread();
+        Thread[] request = new Thread[threads.length];
+        int count = 0;
+        for (var thread : threads) {
+            if (Objects.requireNonNull(thread) != current) {
+                request[count++] = thread;
+            }
+        }
+        request = count == request.length ? request : Arrays.copyOf(request, count);
+        this.start = System.nanoTime();
+        int[] results = JVMTI.SuspendThreadList(request);
+        this.suspended = System.nanoTime();
+        int done = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == JVMTI_ERROR_NONE) {
+                request[done++] = request[i];
+            }
+        }
+        this.suspended_threads = done == request.length ?
+                request : Arrays.copyOf(request, done);
+    }
+
+    public ScopedSuspendThreads(Thread... threads) {
+        this("Hook", threads);
+    }
+
+    /**
+     * @return threads that were suspended by this scope and will be resumed by close
+     */
+    public Thread[] suspendedThreads() {
+        return suspended_threads.clone();
+    }
+
+    @Override
+    public void close() {
+        if (nested) {
+            return;
+        }
+        long resumed = System.nanoTime();
+        JVMTI.ResumeThreadList(suspended_threads);
+        hold_nanos = resumed - suspended;
+        ScopedSuspendAll.record(new Window(cause, start, suspended - start,
+                hold_nanos, caller));
+    }
+
+    /**
+     * @return time from the moment the threads were suspended until they were resumed,
+     * valid after close. Nested scopes return 0
+     */
+    public long holdNanos() {
+        return hold_nanos;
+    }
+}
@@ -0,0 +1,125 @@
+package com.v7878.vmtools;
+
+import static com.v7878.vmtools._Utils.rawMethodTypeOf;
+
+import java.lang.reflect.Executable;
+
+/**
+ * Checks that a hooker can receive the calls of a target.
+ * Reference types are not checked, as trampolines are often erased,
+ * but primitive and wide arguments must match, otherwise the hooker reads garbage.
+ */
+final class Signatures {
+    private Signatures() {
+    }
+
+    enum Kind {
+        /**
+         * Both methods have the same calling convention
+         */
+        EXACT,
+        /**
+         * Calls have to go through an adapter that converts arguments and result
+         */
+        ADAPT
+    }
+
+    private static Class<?> wrapperOf(Class<?> type) {
+        if (type == boolean.class) return Boolean.class;
+        if (type == byte.class) return Byte.class;
+        if (type == short.class) return Short.class;
+        if (type == char.class) return Character.class;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == float.class) return Float.class;
+        if (type == double.class) return Double.class;
+        throw new IllegalArgumentException(type.toString());
+    }
+
+    private static Class<?> primitiveOf(Class<?> wrapper) {
+        if (wrapper == Boolean.class) return boolean.class;
+        if (wrapper == Byte.class) return byte.class;
+        if (wrapper == Short.class) return short.class;
+        if (wrapper == Character.class) return char.class;
+        if (wrapper == Integer.class) return int.class;
+        if (wrapper == Long.class) return long.class;
+        if (wrapper == Float.class) return float.class;
+        if (wrapper == Double.class) return double.class;
+        return null;
+    }
+
+    private static int rankOf(Class<?> type) {
+        if (type == byte.class) return 1;
+        if (type == short.class || type == char.class) return 2;
+        if (type == int.class) return 3;
+        if (type == long.class) return 4;
+        if (type == float.class) return 5;
+        if (type == double.class) return 6;
+        return -1;
+    }
+
+    private static boolean isWidening(Class<?> from, Class<?> to) {
+        if (from == to) {
+            return true;
+        }
+        if (from == boolean.class || to == boolean.class) {
+            return false;
+        }
+        // char and short cannot be converted to each other
+        if (to == char.class || (from == char.class && to == short.class)) {
+            return false;
+        }
+        return rankOf(from) < rankOf(to);
+    }
+
+    /**
+     * Conversions performed by MethodHandle.asType
+     */
+    private static boolean isConvertible(Class<?> from, Class<?> to) {
+        if (from == to || to == void.class) {
+            return true;
+        }
+        if (from == void.class) {
+            // null or zero is returned
+            return true;
+        }
+        if (from.isPrimitive() && to.isPrimitive()) {
+            return isWidening(from, to);
+        }
+        if (from.isPrimitive()) {
+            return to.isAssignableFrom(wrapperOf(from));
+        }
+        if (to.isPrimitive()) {
+            var unboxed = primitiveOf(from);
+            if (unboxed != null) {
+                return isWidening(unboxed, to);
+            }
+            return from.isAssignableFrom(wrapperOf(to));
+        }
+        return true;
+    }
+
+    /**
+     * Only runs when a hook is prepared, so the result is not cached
+     *
+     * @throws IllegalArgumentException if the types cannot be converted
+     */
+    static Kind check(Executable target, Executable hooker) {
+        var target_type = rawMethodTypeOf(target);
+        var hooker_type = rawMethodTypeOf(hooker);
+        if (target_type.erase().equals(hooker_type.erase())) {
+            return Kind.EXACT;
+        }
+        boolean convertible = target_type.parameterCount() == hooker_type.parameterCount() &&
+                isConvertible(hooker_type.returnType(), target_type.returnType());
+        for (int i = 0; convertible && i < target_type.parameterCount(); i++) {
+            convertible = isConvertible(target_type.parameterType(i), hooker_type.parameterType(i));
+        }
+        if (!convertible) {
+            throw new IllegalArgumentException(String.format(
+                    "%s -> %s: Hooker type %s is incompatible with target type %s",
+                    target, hooker, hooker_type, target_type));
+        }
+        return Kind.ADAPT;
+    }
+}
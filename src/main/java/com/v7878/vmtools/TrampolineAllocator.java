@@ -0,0 +1,245 @@
+package com.v7878.vmtools;
+
+import static com.v7878.unsafe.AndroidUnsafe.IS64BIT;
+import static com.v7878.unsafe.AndroidUnsafe.PAGE_SIZE;
+import static com.v7878.unsafe.AndroidUnsafe.getWordN;
+import static com.v7878.unsafe.AndroidUnsafe.putWordN;
+import static com.v7878.unsafe.InstructionSet.CURRENT_INSTRUCTION_SET;
+
+import com.v7878.foreign.Arena;
+import com.v7878.r8.annotations.DoNotShrink;
+import com.v7878.sun.cleaner.SunCleaner;
+import com.v7878.unsafe.NativeCodeBlob;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.LongFunction;
+
+/**
+ * Packs trampolines into shared executable pages.
+ * The code of every slot is generated once together with its page and is never
+ * rewritten, the slot only loads its arguments from a separate writable data cell.
+ */
+public final class TrampolineAllocator {
+    private TrampolineAllocator() {
+    }
+
+    public record Stats(int slot_size, int pages, int slots, int used_slots) {
+    }
+
+    @DoNotShrink
+    private static final Arena SCOPE = Arena.ofAuto();
+
+    static final int WORD_SIZE = IS64BIT ? 8 : 4;
+    // [art_method, entry_point, original_entry_point, reserved]
+    static final int DATA_SIZE = WORD_SIZE * 4;
+    static final int ART_METHOD_OFFSET = 0;
+    static final int ENTRY_POINT_OFFSET = WORD_SIZE;
+    // Entry point of the patched target before the patch, read by indirect trampolines
+    static final int ORIGINAL_OFFSET = WORD_SIZE * 2;
+
+    private static final int[] SIZE_CLASSES = {16, 32, 64};
+
+    /**
+     * Loads art_method from data[0] and jumps to data[1]
+     */
+    private static byte[] getTrampolineArray(long data) {
+        return switch (CURRENT_INSTRUCTION_SET) {
+            case X86 -> TrampolineCode.x86(data);
+            case X86_64 -> TrampolineCode.x86_64(data);
+            case ARM -> TrampolineCode.arm(data);
+            case ARM64 -> TrampolineCode.arm64(data);
+            case RISCV64 -> TrampolineCode.riscv64(data);
+            default -> throw new UnsupportedOperationException("Not supported yet!");
+        };
+    }
+
+    /**
+     * Loads art_method from data[0] and jumps to the address stored in the cell pointed to by data[1]
+     */
+    private static byte[] getIndirectTrampolineArray(long data) {
+        return switch (CURRENT_INSTRUCTION_SET) {
+            case X86 -> TrampolineCode.x86Indirect(data);
+            case X86_64 -> TrampolineCode.x86_64Indirect(data);
+            case ARM -> TrampolineCode.armIndirect(data);
+            case ARM64 -> TrampolineCode.arm64Indirect(data);
+            case RISCV64 -> TrampolineCode.riscv64Indirect(data);
+            default -> throw new UnsupportedOperationException("Not supported yet!");
+        };
+    }
+
+    private static int sizeClassOf(int length) {
+        for (int size : SIZE_CLASSES) {
+            if (length <= size) {
+                return size;
+            }
+        }
+        throw new IllegalArgumentException("Trampoline is too big: " + length);
+    }
+
+    static final class Slot {
+        private final Page page;
+        private final int index;
+        private final int generation;
+        // Unregistered from the cleaner by free
+        private SunCleaner.Cleanable cleanable;
+
+        private Slot(Page page, int index, int generation) {
+            this.page = page;
+            this.index = index;
+            this.generation = generation;
+        }
+
+        public long code() {
+            return page.code + (long) index * page.pool.slot_size;
+        }
+
+        public long data() {
+            return page.data + (long) index * DATA_SIZE;
+        }
+
+        public void set(long art_method, long entry_point) {
+            long data = data();
+            putWordN(data + ART_METHOD_OFFSET, art_method);
+            putWordN(data + ENTRY_POINT_OFFSET, entry_point);
+        }
+
+        public long entryPoint() {
+            return getWordN(data() + ENTRY_POINT_OFFSET);
+        }
+
+        /**
+         * MUST NOT be called while the slot is in use
+         */
+        public void setEntryPoint(long entry_point) {
+            putWordN(data() + ENTRY_POINT_OFFSET, entry_point);
+        }
+
+        public long originalCell() {
+            return data() + ORIGINAL_OFFSET;
+        }
+
+        /**
+         * Word store, so it is safe to call while the slot is in use
+         */
+        public void setOriginal(long entry_point) {
+            putWordN(originalCell(), entry_point);
+        }
+
+        /**
+         * Nothing may jump to this slot after it is freed
+         */
+        public void free() {
+            cleanable.clean();
+        }
+    }
+
+    private static final class Page {
+        final Pool pool;
+        final long code;
+        final long data;
+        final BitSet used;
+        final int[] generations;
+        int used_count;
+
+        Page(Pool pool, long code, long data, int count) {
+            this.pool = pool;
+            this.code = code;
+            this.data = data;
+            this.used = new BitSet(count);
+            this.generations = new int[count];
+        }
+    }
+
+    private static final class Pool {
+        final LongFunction<byte[]> generator;
+        final int slot_size;
+        final int slots_per_page;
+        final List<Page> pages = new ArrayList<>();
+
+        Pool(LongFunction<byte[]> generator) {
+            this.generator = generator;
+            this.slot_size = sizeClassOf(generator.apply(0).length);
+            this.slots_per_page = Math.toIntExact(PAGE_SIZE / slot_size);
+        }
+
+        private Page newPage() {
+            int count = slots_per_page;
+            long data = SCOPE.allocate((long) DATA_SIZE * count, WORD_SIZE).nativeAddress();
+            byte[] code = new byte[slot_size * count];
+            for (int i = 0; i < count; i++) {
+                byte[] stub = generator.apply(data + (long) i * DATA_SIZE);
+                System.arraycopy(stub, 0, code, i * slot_size, stub.length);
+            }
+            long code_address = NativeCodeBlob.makeCodeBlob(SCOPE, code)[0].nativeAddress();
+            var page = new Page(this, code_address, data, count);
+            pages.add(page);
+            return page;
+        }
+
+        synchronized Slot allocate() {
+            Page page = null;
+            for (var tmp : pages) {
+                if (tmp.used_count < slots_per_page) {
+                    page = tmp;
+                    break;
+                }
+            }
+            if (page == null) {
+                page = newPage();
+            }
+            int index = page.used.nextClearBit(0);
+            page.used.set(index);
+            page.used_count++;
+            return new Slot(page, index, page.generations[index]);
+        }
+
+        synchronized void free(Page page, int index, int generation) {
+            // The slot may already be freed and reused by someone else
+            if (page.generations[index] != generation || !page.used.get(index)) {
+                return;
+            }
+            page.generations[index]++;
+            page.used.clear(index);
+            page.used_count--;
+        }
+
+        synchronized Stats stats() {
+            int used = 0;
+            for (var page : pages) {
+                used += page.used_count;
+            }
+            return new Stats(slot_size, pages.size(), pages.size() * slots_per_page, used);
+        }
+    }
+
+    private static final Pool DIRECT = new Pool(TrampolineAllocator::getTrampolineArray);
+    private static final Pool INDIRECT = new Pool(TrampolineAllocator::getIndirectTrampolineArray);
+
+    /**
+     * Slot is freed by Slot.free or when the owner class is unloaded, whichever comes first.
+     * The cleaner entry is removed by Slot.free, so freed slots do not pile up on owners
+     */
+    static Slot allocate(Class<?> owner, boolean indirect) {
+        Objects.requireNonNull(owner);
+        var pool = indirect ? INDIRECT : DIRECT;
+        var slot = pool.allocate();
+        var page = slot.page;
+        int index = slot.index;
+        int generation = slot.generation;
+        // The action must not capture the slot, it may be reachable from the owner
+        slot.cleanable = SunCleaner.systemCleaner().register(owner,
+                () -> pool.free(page, index, generation));
+        return slot;
+    }
+
+    static Slot allocate(Class<?> owner) {
+        return allocate(owner, false);
+    }
+
+    public static List<Stats> stats() {
+        return List.of(DIRECT.stats(), INDIRECT.stats());
+    }
+}
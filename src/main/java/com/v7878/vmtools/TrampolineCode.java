@@ -0,0 +1,184 @@
+package com.v7878.vmtools;
+
+/**
+ * Machine code of trampolines for every supported instruction set.
+ * Direct trampolines load art_method from data[0] and jump to data[1],
+ * indirect ones jump to the address stored in the cell pointed to by data[1].
+ * The code depends on nothing but the address of data, so it can be checked off device.
+ */
+final class TrampolineCode {
+    private TrampolineCode() {
+    }
+
+    private static byte[] toArray(long value) {
+        //noinspection PointlessBitwiseExpression
+        return new byte[]{
+                (byte) (value >> 0),
+                (byte) (value >> 8),
+                (byte) (value >> 16),
+                (byte) (value >> 24),
+                (byte) (value >> 32),
+                (byte) (value >> 40),
+                (byte) (value >> 48),
+                (byte) (value >> 56)
+        };
+    }
+
+    static byte[] x86(long data) {
+        byte[] d = toArray(data);
+        byte[] d4 = toArray(data + 4);
+        return new byte[]{
+                // a1 <d0 d1 d2 d3> ; mov eax, [data]
+                // ff 25 <d0 d1 d2 d3> ; jmp [data + 4]
+                (byte) 0xa1, d[0], d[1], d[2], d[3],
+                (byte) 0xff, 0x25, d4[0], d4[1], d4[2], d4[3]
+        };
+    }
+
+    static byte[] x86_64(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 49 bb <d0 d1 d2 d3 d4 d5 d6 d7> ; movabs r11, data
+                // 49 8b 3b ; mov rdi, [r11]
+                // 41 ff 63 08 ; jmp [r11 + 8]
+                0x49, (byte) 0xbb, d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7],
+                0x49, (byte) 0x8b, 0x3b,
+                0x41, (byte) 0xff, 0x63, 0x08
+        };
+    }
+
+    static byte[] arm(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 04 C0 9F E5 ; ldr r12, [pc, #4]
+                // 00 00 9C E5 ; ldr r0, [r12]
+                // 04 F0 9C E5 ; ldr pc, [r12, #4]
+                // <d0 d1 d2 d3> ; data
+                0x04, (byte) 0xc0, (byte) 0x9f, (byte) 0xe5,
+                0x00, 0x00, (byte) 0x9c, (byte) 0xe5,
+                0x04, (byte) 0xf0, (byte) 0x9c, (byte) 0xe5,
+                d[0], d[1], d[2], d[3]
+        };
+    }
+
+    static byte[] arm64(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 90 00 00 58 ; ldr x16, #16
+                // 00 02 40 f9 ; ldr x0, [x16]
+                // 10 06 40 f9 ; ldr x16, [x16, #8]
+                // 00 02 1f d6 ; br x16
+                // <d0 d1 d2 d3 d4 d5 d6 d7> ; data
+                (byte) 0x90, 0x00, 0x00, 0x58,
+                0x00, 0x02, 0x40, (byte) 0xf9,
+                0x10, 0x06, 0x40, (byte) 0xf9,
+                0x00, 0x02, 0x1f, (byte) 0xd6,
+                d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7]
+        };
+    }
+
+    static byte[] riscv64(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 97 0f 00 00 ; auipc t6, 0
+                // 83 bf 8f 01 ; ld t6, 24(t6)
+                // 03 b5 0f 00 ; ld a0, 0(t6)
+                // 83 bf 8f 00 ; ld t6, 8(t6)
+                // 67 80 0f 00 ; jr t6
+                // 13 00 00 00 ; nop
+                // <d0 d1 d2 d3 d4 d5 d6 d7> ; data
+                (byte) 0x97, 0x0f, 0x00, 0x00,
+                (byte) 0x83, (byte) 0xbf, (byte) 0x8f, 0x01,
+                0x03, (byte) 0xb5, 0x0f, 0x00,
+                (byte) 0x83, (byte) 0xbf, (byte) 0x8f, 0x00,
+                0x67, (byte) 0x80, 0x0f, 0x00,
+                0x13, 0x00, 0x00, 0x00,
+                d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7]
+        };
+    }
+
+    static byte[] x86Indirect(long data) {
+        byte[] d = toArray(data);
+        byte[] d4 = toArray(data + 4);
+        return new byte[]{
+                // a1 <d0 d1 d2 d3> ; mov eax, [data + 4]
+                // ff 30 ; push [eax]
+                // a1 <d0 d1 d2 d3> ; mov eax, [data]
+                // c3 ; ret
+                (byte) 0xa1, d4[0], d4[1], d4[2], d4[3],
+                (byte) 0xff, 0x30,
+                (byte) 0xa1, d[0], d[1], d[2], d[3],
+                (byte) 0xc3
+        };
+    }
+
+    static byte[] x86_64Indirect(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 49 bb <d0 d1 d2 d3 d4 d5 d6 d7> ; movabs r11, data
+                // 49 8b 3b ; mov rdi, [r11]
+                // 4d 8b 5b 08 ; mov r11, [r11 + 8]
+                // 41 ff 23 ; jmp [r11]
+                0x49, (byte) 0xbb, d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7],
+                0x49, (byte) 0x8b, 0x3b,
+                0x4d, (byte) 0x8b, 0x5b, 0x08,
+                0x41, (byte) 0xff, 0x23
+        };
+    }
+
+    static byte[] armIndirect(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 08 C0 9F E5 ; ldr r12, [pc, #8]
+                // 00 00 9C E5 ; ldr r0, [r12]
+                // 04 C0 9C E5 ; ldr r12, [r12, #4]
+                // 00 F0 9C E5 ; ldr pc, [r12]
+                // <d0 d1 d2 d3> ; data
+                0x08, (byte) 0xc0, (byte) 0x9f, (byte) 0xe5,
+                0x00, 0x00, (byte) 0x9c, (byte) 0xe5,
+                0x04, (byte) 0xc0, (byte) 0x9c, (byte) 0xe5,
+                0x00, (byte) 0xf0, (byte) 0x9c, (byte) 0xe5,
+                d[0], d[1], d[2], d[3]
+        };
+    }
+
+    static byte[] arm64Indirect(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // d0 00 00 58 ; ldr x16, #24
+                // 00 02 40 f9 ; ldr x0, [x16]
+                // 10 06 40 f9 ; ldr x16, [x16, #8]
+                // 10 02 40 f9 ; ldr x16, [x16]
+                // 00 02 1f d6 ; br x16
+                // 1f 20 03 d5 ; nop
+                // <d0 d1 d2 d3 d4 d5 d6 d7> ; data
+                (byte) 0xd0, 0x00, 0x00, 0x58,
+                0x00, 0x02, 0x40, (byte) 0xf9,
+                0x10, 0x06, 0x40, (byte) 0xf9,
+                0x10, 0x02, 0x40, (byte) 0xf9,
+                0x00, 0x02, 0x1f, (byte) 0xd6,
+                0x1f, 0x20, 0x03, (byte) 0xd5,
+                d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7]
+        };
+    }
+
+    static byte[] riscv64Indirect(long data) {
+        byte[] d = toArray(data);
+        return new byte[]{
+                // 97 0f 00 00 ; auipc t6, 0
+                // 83 bf 8f 01 ; ld t6, 24(t6)
+                // 03 b5 0f 00 ; ld a0, 0(t6)
+                // 83 bf 8f 00 ; ld t6, 8(t6)
+                // 83 bf 0f 00 ; ld t6, 0(t6)
+                // 67 80 0f 00 ; jr t6
+                // <d0 d1 d2 d3 d4 d5 d6 d7> ; data
+                (byte) 0x97, 0x0f, 0x00, 0x00,
+                (byte) 0x83, (byte) 0xbf, (byte) 0x8f, 0x01,
+                0x03, (byte) 0xb5, 0x0f, 0x00,
+                (byte) 0x83, (byte) 0xbf, (byte) 0x8f, 0x00,
+                (byte) 0x83, (byte) 0xbf, 0x0f, 0x00,
+                0x67, (byte) 0x80, 0x0f, 0x00,
+                d[0], d[1], d[2], d[3], d[4], d[5], d[6], d[7]
+        };
+    }
+}
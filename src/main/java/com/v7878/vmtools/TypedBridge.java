@@ -0,0 +1,257 @@
+package com.v7878.vmtools;
+
+import static com.v7878.dex.DexConstants.ACC_FINAL;
+import static com.v7878.dex.DexConstants.ACC_PRIVATE;
+import static com.v7878.dex.DexConstants.ACC_PUBLIC;
+import static com.v7878.dex.DexConstants.ACC_STATIC;
+import static com.v7878.dex.builder.CodeBuilder.InvokeKind.INTERFACE;
+import static com.v7878.dex.builder.CodeBuilder.Op.GET_OBJECT;
+import static com.v7878.unsafe.Reflection.fieldOffset;
+import static com.v7878.unsafe.Reflection.getDeclaredField;
+import static com.v7878.unsafe.Reflection.getDeclaredMethod;
+
+import com.v7878.dex.DexIO;
+import com.v7878.dex.builder.ClassBuilder;
+import com.v7878.dex.builder.CodeBuilder;
+import com.v7878.dex.immutable.ClassDef;
+import com.v7878.dex.immutable.Dex;
+import com.v7878.dex.immutable.FieldId;
+import com.v7878.dex.immutable.MethodId;
+import com.v7878.dex.immutable.ProtoId;
+import com.v7878.dex.immutable.TypeId;
+import com.v7878.unsafe.AndroidUnsafe;
+import com.v7878.unsafe.ArtMethodUtils;
+import com.v7878.unsafe.DexFileUtils;
+import com.v7878.unsafe.Utils;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Static bridge that passes the arguments of the hooked method directly
+ * to the single abstract method of a callback interface.
+ * Unlike HookTransformer, no EmulatedStackFrame is created.
+ * Bridges are shared between hooks with the same callback interface: every bridge class
+ * has SLOTS_PER_CLASS pairs of hook and backup methods, each of them reads its own static field.
+ */
+final class TypedBridge {
+    static final int SLOTS_PER_CLASS = 8;
+
+    private static final String BRIDGE_NAME = Hooks.class.getName() + "$$$Bridge";
+    private static final String HOOK_NAME = "hook";
+    private static final String BACKUP_NAME = "backup";
+    private static final String FIELD_NAME = "callback";
+
+    private static final class Entry {
+        final Pool pool;
+        final Method hook;
+        final Method backup;
+        final long callback_offset;
+        // Guarded by TypedBridge.class
+        int generation;
+        boolean acquired;
+
+        Entry(Pool pool, Method hook, Method backup, long callback_offset) {
+            this.pool = pool;
+            this.hook = hook;
+            this.backup = backup;
+            this.callback_offset = callback_offset;
+        }
+    }
+
+    /**
+     * One acquisition of a bridge, it becomes stale once released
+     */
+    static final class Slot implements PooledSlot {
+        private final Entry entry;
+        private final int generation;
+
+        private Slot(Entry entry, int generation) {
+            this.entry = entry;
+            this.generation = generation;
+        }
+
+        /**
+         * Calls the callback
+         */
+        public Method hook() {
+            return entry.hook;
+        }
+
+        /**
+         * Has the same code as hook, but is expected to be replaced with the original method
+         */
+        public Method backup() {
+            return entry.backup;
+        }
+
+        public void setCallback(Object callback) {
+            AndroidUnsafe.putObject(entry.hook.getDeclaringClass(), entry.callback_offset, callback);
+        }
+
+        @Override
+        public void release() {
+            synchronized (TypedBridge.class) {
+                if (!entry.acquired || entry.generation != generation) {
+                    return;
+                }
+                entry.acquired = false;
+                entry.generation++;
+                setCallback(null);
+                entry.pool.free.push(entry);
+            }
+        }
+    }
+
+    private static final class Pool {
+        final Class<?> callback_type;
+        final MethodType erased;
+        final ArrayDeque<Entry> free = new ArrayDeque<>();
+
+        Pool(Class<?> callback_type, MethodType erased) {
+            this.callback_type = callback_type;
+            this.erased = erased;
+        }
+    }
+
+    // Pools are never removed, so callback interfaces and their class loaders stay alive
+    private static final Map<Class<?>, Pool> pools = new HashMap<>();
+    private static int next_class_id;
+
+    private static Method callbackMethodOf(Class<?> callback_type) {
+        if (!callback_type.isInterface()) {
+            throw new IllegalArgumentException(callback_type + " is not an interface");
+        }
+        Method out = null;
+        for (var method : callback_type.getMethods()) {
+            if (Modifier.isAbstract(method.getModifiers())) {
+                if (out != null) {
+                    throw new IllegalArgumentException(
+                            callback_type + " has more than one abstract method");
+                }
+                out = method;
+            }
+        }
+        if (out == null) {
+            throw new IllegalArgumentException(callback_type + " has no abstract methods");
+        }
+        return out;
+    }
+
+    private static boolean isCompatible(Class<?> from, Class<?> to) {
+        if (from.isPrimitive() || to.isPrimitive()) {
+            return from == to;
+        }
+        return to.isAssignableFrom(from);
+    }
+
+    private static MethodType checkCallback(MethodType type, Method callback) {
+        var callback_type = MethodType.methodType(
+                callback.getReturnType(), callback.getParameterTypes());
+        boolean compatible = type.parameterCount() == callback_type.parameterCount() &&
+                isCompatible(callback_type.returnType(), type.returnType());
+        for (int i = 0; compatible && i < type.parameterCount(); i++) {
+            compatible = isCompatible(type.parameterType(i), callback_type.parameterType(i));
+        }
+        if (!compatible) {
+            throw new IllegalArgumentException(String.format(
+                    "Callback %s is incompatible with %s", callback, type));
+        }
+        return callback_type;
+    }
+
+    private static ClassDef generateBridge(String name, Class<?> callback_type) {
+        Method callback = callbackMethodOf(callback_type);
+        MethodType type = MethodType.methodType(
+                callback.getReturnType(), callback.getParameterTypes());
+        ProtoId proto = ProtoId.of(type.erase());
+
+        TypeId bridge_id = TypeId.ofName(name);
+        TypeId callback_id = TypeId.of(callback_type);
+        MethodId callback_method_id = MethodId.of(callback);
+
+        int params = proto.countInputRegisters();
+        var ret_type = proto.getReturnType().getShorty();
+
+        return ClassBuilder.build(bridge_id, cb -> {
+            cb.withSuperClass(TypeId.OBJECT);
+            cb.withFlags(ACC_PUBLIC | ACC_FINAL);
+            for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+                FieldId field_id = FieldId.of(bridge_id, FIELD_NAME + i, callback_id);
+                MethodId hook_id = MethodId.of(bridge_id, HOOK_NAME + i, proto);
+                MethodId backup_id = MethodId.of(bridge_id, BACKUP_NAME + i, proto);
+
+                Consumer<CodeBuilder> code = ib -> {
+                    ib.sop(GET_OBJECT, ib.v(1), field_id);
+                    int reg = 0;
+                    for (var ptype : type.parameterArray()) {
+                        if (!ptype.isPrimitive() && ptype != Object.class) {
+                            ib.check_cast(ib.p(reg), TypeId.of(ptype));
+                        }
+                        reg += (ptype == long.class || ptype == double.class) ? 2 : 1;
+                    }
+                    ib.invoke_range(INTERFACE, callback_method_id, params + /* callback */ 1, ib.v(1));
+                    ib.move_result_shorty(ret_type, ib.l(0));
+                    ib.return_shorty(ret_type, ib.l(0));
+                };
+
+                cb.withField(fb -> fb
+                        .of(field_id)
+                        .withFlags(ACC_PRIVATE | ACC_STATIC)
+                );
+                cb.withMethod(mb -> mb
+                        .of(hook_id)
+                        .withFlags(ACC_PUBLIC | ACC_STATIC)
+                        .withCode(/* wide return */ 2, code)
+                );
+                cb.withMethod(mb -> mb
+                        .of(backup_id)
+                        .withFlags(ACC_PUBLIC | ACC_STATIC)
+                        .withCode(/* wide return */ 2, code)
+                );
+            }
+        });
+    }
+
+    private static void grow(Pool pool) {
+        String name = BRIDGE_NAME + (next_class_id++);
+        var parent = pool.callback_type.getClassLoader();
+        ClassLoader loader = Utils.newEmptyClassLoader(parent == null ?
+                Object.class.getClassLoader() : parent);
+        var dexfile = DexFileUtils.openDexFile(DexIO.write(
+                Dex.of(generateBridge(name, pool.callback_type))));
+        var clazz = DexFileUtils.loadClass(dexfile, name, loader);
+
+        var ptypes = pool.erased.parameterArray();
+        for (int i = 0; i < SLOTS_PER_CLASS; i++) {
+            var backup = getDeclaredMethod(clazz, BACKUP_NAME + i, ptypes);
+            // The code of backup must never be inlined, as it is replaced by the next hook
+            ArtMethodUtils.makeExecutableNonCompilable(backup);
+            pool.free.push(new Entry(pool,
+                    getDeclaredMethod(clazz, HOOK_NAME + i, ptypes), backup,
+                    fieldOffset(getDeclaredField(clazz, FIELD_NAME + i))));
+        }
+    }
+
+    /**
+     * Acquires a free bridge for methods of the given raw type,
+     * new bridge classes are loaded only when the pool of callback_type is empty
+     */
+    static synchronized Slot acquire(MethodType type, Class<?> callback_type) {
+        var callback_method = callbackMethodOf(callback_type);
+        var erased = checkCallback(type, callback_method).erase();
+
+        var pool = pools.computeIfAbsent(callback_type, key -> new Pool(key, erased));
+        if (pool.free.isEmpty()) {
+            grow(pool);
+        }
+        var entry = pool.free.pop();
+        entry.acquired = true;
+        return new Slot(entry, entry.generation);
+    }
+}
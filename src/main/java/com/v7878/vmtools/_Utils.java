@@ -57,6 +57,37 @@ final class _Utils {
         return MethodType.methodType(ret, args);
     }
 
+    static boolean isJitCachePath(String path) {
+        return path != null && (path.contains("jit-cache") ||
+                path.contains("jit-code-cache") || path.contains("jit-zygote-cache"));
+    }
+
+    private static boolean isJitCachePath(MMap.Cursor entry) {
+        return entry.pathContains("jit-cache") ||
+                entry.pathContains("jit-code-cache") || entry.pathContains("jit-zygote-cache");
+    }
+
+    /**
+     * Lookup in a snapshot, so that many addresses are checked with a single read of the maps
+     */
+    public static boolean isJitCode(MMapSnapshot maps, long address) {
+        int index = maps.find(address);
+        return index >= 0 && isJitCachePath(maps.path(index));
+    }
+
+    public static boolean isJitCode(long address) {
+        boolean[] out = new boolean[1];
+        MMap.visit("self", entry -> {
+            if (Long.compareUnsigned(address, entry.start()) >= 0 &&
+                    Long.compareUnsigned(address, entry.end()) < 0) {
+                out[0] = isJitCachePath(entry);
+                return false;
+            }
+            return true;
+        });
+        return out[0];
+    }
+
     public static final int PROT_RX = OsConstants.PROT_READ | OsConstants.PROT_EXEC;
     public static final int PROT_RWX = PROT_RX | OsConstants.PROT_WRITE;
 
@@ -0,0 +1,311 @@
+package com.v7878.vmtools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+/**
+ * Decodes the generated trampolines and runs them on a tiny model of every
+ * instruction set: only the instructions used by the trampolines are known,
+ * anything else fails the test.
+ */
+public class TrampolineCodeTest {
+    private static final long CODE = 0x7000_1000L;
+    private static final long[] DATA_32 = {0x6543_2100L, 0xfedc_ba98L};
+    private static final long[] DATA_64 = {0x7f12_3456_7890L, 0xffff_ff80_0000_1238L};
+
+    private static final long ART_METHOD_32 = 0x1234_5678L;
+    private static final long ENTRY_POINT_32 = 0x8765_4320L;
+    private static final long CELL_32 = 0x4000_0040L;
+    private static final long ART_METHOD_64 = 0x7fed_cba9_8765_4320L;
+    private static final long ENTRY_POINT_64 = 0x0000_7abc_def0_1230L;
+    private static final long CELL_64 = 0xffff_ffc0_0000_0100L;
+
+    private record Exit(long art_method, long target) {
+    }
+
+    private static String hex(long value) {
+        return "0x" + Long.toHexString(value);
+    }
+
+    // Code of the trampoline at CODE and words at other addresses
+    private static final class Memory {
+        final byte[] code;
+        final int word;
+        final Map<Long, Long> words = new HashMap<>();
+
+        Memory(byte[] code, int word) {
+            this.code = code;
+            this.word = word;
+        }
+
+        boolean inCode(long address, int size) {
+            return address >= CODE && address + size <= CODE + code.length;
+        }
+
+        long bytes(long address, int size) {
+            if (!inCode(address, size)) {
+                fail("Code is read out of bounds at " + hex(address));
+            }
+            long value = 0;
+            int offset = (int) (address - CODE);
+            for (int i = size - 1; i >= 0; i--) {
+                value = (value << 8) | (code[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        int u8(long pc) {
+            return (int) bytes(pc, 1);
+        }
+
+        int insn(long pc) {
+            return (int) bytes(pc, 4);
+        }
+
+        long read(long address) {
+            if (word == 4) {
+                address &= 0xffff_ffffL;
+            }
+            assertEquals("Unaligned load from " + hex(address), 0, address % word);
+            if (inCode(address, word)) {
+                return bytes(address, word);
+            }
+            var value = words.get(address);
+            if (value == null) {
+                fail("Unexpected load from " + hex(address));
+            }
+            return value;
+        }
+    }
+
+    private static Memory memory(byte[] code, int word, long data, boolean indirect,
+                                 long art_method, long entry_point, long cell) {
+        var memory = new Memory(code, word);
+        memory.words.put(data, art_method);
+        if (indirect) {
+            memory.words.put(data + word, cell);
+            memory.words.put(cell, entry_point);
+        } else {
+            memory.words.put(data + word, entry_point);
+        }
+        return memory;
+    }
+
+    private static void checkWrite(Set<Integer> allowed, int reg, String isa) {
+        assertTrue(isa + " trampoline writes register " + reg, allowed.contains(reg));
+    }
+
+    private static final int MAX_STEPS = 16;
+
+    private static Exit runArm64(Memory memory) {
+        long[] x = new long[32];
+        long pc = CODE;
+        for (int step = 0; step < MAX_STEPS; step++, pc += 4) {
+            int insn = memory.insn(pc);
+            if ((insn & 0xff000000) == 0x58000000) {
+                // ldr xt, label
+                int rt = insn & 31;
+                checkWrite(Set.of(0, 16, 17), rt, "arm64");
+                x[rt] = memory.read(pc + ((long) ((insn << 8) >> 13) << 2));
+            } else if ((insn & 0xffc00000) == 0xf9400000) {
+                // ldr xt, [xn, #imm]
+                int rt = insn & 31;
+                int rn = (insn >> 5) & 31;
+                checkWrite(Set.of(0, 16, 17), rt, "arm64");
+                x[rt] = memory.read(x[rn] + (((insn >> 10) & 0xfff) << 3));
+            } else if ((insn & 0xfffffc1f) == 0xd61f0000) {
+                // br xn
+                return new Exit(x[0], x[(insn >> 5) & 31]);
+            } else if (insn != 0xd503201f) {
+                fail("Unknown arm64 instruction " + Integer.toHexString(insn));
+            }
+        }
+        throw new AssertionError("arm64 trampoline does not jump");
+    }
+
+    private static Exit runArm(Memory memory) {
+        long[] r = new long[16];
+        long pc = CODE;
+        for (int step = 0; step < MAX_STEPS; step++, pc += 4) {
+            int insn = memory.insn(pc);
+            // ldr rt, [rn, #imm] with cond AL
+            if ((insn & 0xfff00000) != 0xe5900000) {
+                fail("Unknown arm instruction " + Integer.toHexString(insn));
+            }
+            int rn = (insn >> 16) & 15;
+            int rt = (insn >> 12) & 15;
+            long base = rn == 15 ? pc + 8 : r[rn];
+            long value = memory.read(base + (insn & 0xfff));
+            if (rt == 15) {
+                return new Exit(r[0], value);
+            }
+            checkWrite(Set.of(0, 12), rt, "arm");
+            r[rt] = value;
+        }
+        throw new AssertionError("arm trampoline does not jump");
+    }
+
+    private static Exit runRiscv64(Memory memory) {
+        long[] x = new long[32];
+        long pc = CODE;
+        for (int step = 0; step < MAX_STEPS; step++, pc += 4) {
+            int insn = memory.insn(pc);
+            int opcode = insn & 0x7f;
+            int rd = (insn >> 7) & 31;
+            int funct3 = (insn >> 12) & 7;
+            int rs1 = (insn >> 15) & 31;
+            long imm = insn >> 20;
+            if (opcode == 0x17) {
+                // auipc rd, imm
+                checkWrite(Set.of(10, 31), rd, "riscv64");
+                x[rd] = pc + (insn & 0xfffff000);
+            } else if (opcode == 0x03 && funct3 == 3) {
+                // ld rd, imm(rs1)
+                checkWrite(Set.of(10, 31), rd, "riscv64");
+                x[rd] = memory.read(x[rs1] + imm);
+            } else if (opcode == 0x67 && funct3 == 0) {
+                // jalr rd, imm(rs1)
+                assertEquals("riscv64 trampoline must not link", 0, rd);
+                return new Exit(x[10], (x[rs1] + imm) & ~1L);
+            } else if (insn != 0x13) {
+                fail("Unknown riscv64 instruction " + Integer.toHexString(insn));
+            }
+            x[0] = 0;
+        }
+        throw new AssertionError("riscv64 trampoline does not jump");
+    }
+
+    private static Exit runX86_64(Memory memory) {
+        final int rdi = 7;
+        long[] reg = new long[16];
+        long pc = CODE;
+        for (int step = 0; step < MAX_STEPS; step++) {
+            int rex = 0;
+            int op = memory.u8(pc);
+            if ((op & 0xf0) == 0x40) {
+                rex = op;
+                op = memory.u8(++pc);
+            }
+            int rex_b = (rex & 1) << 3;
+            int rex_r = (rex & 4) << 1;
+            if (op >= 0xb8 && op <= 0xbf && (rex & 8) != 0) {
+                // movabs r64, imm64
+                int rd = (op - 0xb8) | rex_b;
+                checkWrite(Set.of(rdi, 11), rd, "x86_64");
+                reg[rd] = memory.bytes(pc + 1, 8);
+                pc += 9;
+                continue;
+            }
+            int modrm = memory.u8(pc + 1);
+            int mod = modrm >> 6;
+            int reg_field = (modrm >> 3) & 7;
+            int rm = modrm & 7;
+            if (rm == 4 || mod >= 2 || (mod == 0 && rm == 5)) {
+                fail("Unsupported x86_64 operand " + Integer.toHexString(modrm));
+            }
+            long disp = mod == 1 ? (byte) memory.u8(pc + 2) : 0;
+            long address = reg[rm | rex_b] + disp;
+            pc += 2 + mod;
+            if (op == 0x8b && (rex & 8) != 0) {
+                // mov r64, [rm + disp]
+                int rd = reg_field | rex_r;
+                checkWrite(Set.of(rdi, 11), rd, "x86_64");
+                reg[rd] = memory.read(address);
+            } else if (op == 0xff && reg_field == 4) {
+                // jmp [rm + disp]
+                return new Exit(reg[rdi], memory.read(address));
+            } else {
+                fail("Unknown x86_64 instruction " + Integer.toHexString(op));
+            }
+        }
+        throw new AssertionError("x86_64 trampoline does not jump");
+    }
+
+    private static Exit runX86(Memory memory) {
+        long eax = 0;
+        long[] stack = new long[4];
+        int sp = 0;
+        long pc = CODE;
+        for (int step = 0; step < MAX_STEPS; step++) {
+            int op = memory.u8(pc);
+            if (op == 0xa1) {
+                // mov eax, [imm32]
+                eax = memory.read(memory.bytes(pc + 1, 4));
+                pc += 5;
+            } else if (op == 0xff && memory.u8(pc + 1) == 0x25) {
+                // jmp [imm32]
+                assertEquals("x86 trampoline leaves the stack unbalanced", 0, sp);
+                return new Exit(eax, memory.read(memory.bytes(pc + 2, 4)));
+            } else if (op == 0xff && memory.u8(pc + 1) == 0x30) {
+                // push [eax]
+                stack[sp++] = memory.read(eax);
+                pc += 2;
+            } else if (op == 0xc3) {
+                // ret
+                assertEquals("x86 trampoline leaves the stack unbalanced", 1, sp);
+                return new Exit(eax, stack[--sp]);
+            } else {
+                fail("Unknown x86 instruction " + Integer.toHexString(op));
+            }
+        }
+        throw new AssertionError("x86 trampoline does not jump");
+    }
+
+    private interface Runner {
+        Exit run(Memory memory);
+    }
+
+    private static void check(String name, LongFunction<byte[]> generator, Runner runner,
+                              boolean is64, boolean indirect) {
+        int word = is64 ? 8 : 4;
+        long[] data_values = is64 ? DATA_64 : DATA_32;
+        long art_method = is64 ? ART_METHOD_64 : ART_METHOD_32;
+        long entry_point = is64 ? ENTRY_POINT_64 : ENTRY_POINT_32;
+        long cell = is64 ? CELL_64 : CELL_32;
+        for (long data : data_values) {
+            byte[] code = generator.apply(data);
+            assertTrue(name + " trampoline is too big: " + code.length, code.length <= 64);
+            var exit = runner.run(memory(code, word, data, indirect, art_method, entry_point, cell));
+            assertEquals(name + " art_method for data " + hex(data), art_method, exit.art_method());
+            assertEquals(name + " jump target for data " + hex(data), entry_point, exit.target());
+        }
+    }
+
+    @Test
+    public void x86() {
+        check("x86", TrampolineCode::x86, TrampolineCodeTest::runX86, false, false);
+        check("x86 indirect", TrampolineCode::x86Indirect, TrampolineCodeTest::runX86, false, true);
+    }
+
+    @Test
+    public void x86_64() {
+        check("x86_64", TrampolineCode::x86_64, TrampolineCodeTest::runX86_64, true, false);
+        check("x86_64 indirect", TrampolineCode::x86_64Indirect, TrampolineCodeTest::runX86_64, true, true);
+    }
+
+    @Test
+    public void arm() {
+        check("arm", TrampolineCode::arm, TrampolineCodeTest::runArm, false, false);
+        check("arm indirect", TrampolineCode::armIndirect, TrampolineCodeTest::runArm, false, true);
+    }
+
+    @Test
+    public void arm64() {
+        check("arm64", TrampolineCode::arm64, TrampolineCodeTest::runArm64, true, false);
+        check("arm64 indirect", TrampolineCode::arm64Indirect, TrampolineCodeTest::runArm64, true, true);
+    }
+
+    @Test
+    public void riscv64() {
+        check("riscv64", TrampolineCode::riscv64, TrampolineCodeTest::runRiscv64, true, false);
+        check("riscv64 indirect", TrampolineCode::riscv64Indirect, TrampolineCodeTest::runRiscv64, true, true);
+    }
+}